@@ -17,7 +17,9 @@
  */
 var websocket_smartcard_signer = {
   _dataToSignList : [],
+  _binaryDataToSignList : [],
   _dllList : [],
+  _batchToken : null,
   _statusLog : [],
   _logHandler : null,
   
@@ -44,6 +46,20 @@ var websocket_smartcard_signer = {
       return this;
   },
   
+  /*
+   * The requests sent with the same batch token from this machine, also on different connections, are signed with one certificate selection and PIN
+   * */
+  setBatchToken : function(batchToken){
+      this._batchToken = batchToken;
+      return this;
+  },
+  
+  _addBatchToken : function(request){
+      if(this._batchToken != null)
+          request.batchToken = this._batchToken;
+      return request;
+  },
+  
   addData : function(id, contentB64){
       this._dataToSignList.push({
           id : id,
@@ -65,6 +81,23 @@ var websocket_smartcard_signer = {
       return this;
   },
   
+  /*
+   * content must be an ArrayBuffer, a typed array or a Blob: it is sent as binary message with signBinary
+   * */
+  addBinaryData : function(id, content, params){
+      this._binaryDataToSignList.push({
+          id : id,
+          content : content,
+          params : params
+      });
+      return this;
+  },
+  
+  cleanBinaryData : function(){
+      this._binaryDataToSignList = [];
+      return this;
+  },
+  
   addDataTest : function(){
       this.addData('firstItem', 'dGVzdA==', {
           signPdfAsP7m : false,
@@ -96,10 +129,103 @@ var websocket_smartcard_signer = {
           signService.close();
       }.bind(this);
       signService.onopen = function(){
-          var data = {
+          var data = this._addBatchToken({
+              dllList : this._dllList,
+              dataToSign : this._dataToSignList
+          });
+          var dataS = JSON.stringify(data);
+          signService.send(dataS);
+          this._log('Data sent to WebSocket: ' + dataS);
+      }.bind(this);
+      signService.onclose = function(){
+          this._log('Connection closed');
+      }.bind(this);
+      signService.onerror = function(){
+          this._log('Connection error: the WebSocket service ' + wsEndpoint + ' can not be reached.');
+          throw 'Connection error: the WebSocket service ' + wsEndpoint + ' can not be reached.';
+      }.bind(this);
+      return this;
+  },
+  
+  /*
+   * Send related requests on one connection: each request is {dataToSign, resultsHandler, errorHandler}, where dataToSign is a list like the one built with addData
+   * The requests are signed with one certificate selection and PIN, and each handler receives only the results of its request
+   * */
+  signRequests : function(requestList, errorHandler){
+      var wsEndpoint = 'ws://127.0.0.1:8765/websockets/sign';
+      if(!(requestList instanceof Array) || requestList.length == 0)
+          throw 'The signRequests paramenter must be a not empty array';
+      var batchToken = this._batchToken != null ? this._batchToken : 'batch-' + new Date().getTime() + '-' + Math.random().toString(36).substr(2);
+      var pending = requestList.length;
+      var signService = new WebSocket(wsEndpoint);
+      this._log('WebSocket client created');
+      signService.onmessage = function(event){
+          this._log('Data received from WebSocket: ' + event.data);
+          var dataJson = JSON.parse(event.data);
+          var request = dataJson.requestId != null ? requestList[parseInt(dataJson.requestId)] : null;
+          if(request == null){
+              errorHandler(dataJson.error != null ? dataJson.error : 'Unexpected response');
+              signService.close();
+              return;
+          }
+          if(dataJson.error != null)
+              (request.errorHandler || errorHandler)(dataJson.error);
+          else
+              request.resultsHandler(dataJson.dataSigned);
+          if(--pending == 0)
+              signService.close();
+      }.bind(this);
+      signService.onopen = function(){
+          for(var i=0;i<requestList.length;i++){
+              var dataS = JSON.stringify({
+                  requestId : '' + i,
+                  batchToken : batchToken,
+                  dllList : this._dllList,
+                  dataToSign : requestList[i].dataToSign
+              });
+              signService.send(dataS);
+              this._log('Data sent to WebSocket: ' + dataS);
+          }
+      }.bind(this);
+      signService.onclose = function(){
+          this._log('Connection closed');
+      }.bind(this);
+      signService.onerror = function(){
+          this._log('Connection error: the WebSocket service ' + wsEndpoint + ' can not be reached.');
+          throw 'Connection error: the WebSocket service ' + wsEndpoint + ' can not be reached.';
+      }.bind(this);
+      return this;
+  },
+  
+  /*
+   * The item handler receives every signed data {index, id, contentB64} as soon as it is ready, the completed handler the number of signed data
+   * */
+  signStreaming : function(itemHandler, completedHandler, errorHandler){
+      var wsEndpoint = 'ws://127.0.0.1:8765/websockets/sign';
+      if(!(itemHandler instanceof Function) || !(completedHandler instanceof Function))
+          throw 'The signStreaming paramenters must be functions';
+      var signService = new WebSocket(wsEndpoint);
+      this._log('WebSocket client created');
+      signService.onmessage = function(event){
+          var dataJson = JSON.parse(event.data);
+          if(dataJson.dataSignedItem != null){
+              this._log('Data received from WebSocket: ' + dataJson.dataSignedItem.id);
+              itemHandler(dataJson.dataSignedItem);
+              return;
+          }
+          this._log('Data received from WebSocket: ' + event.data);
+          if(dataJson.error != null)
+              errorHandler(dataJson.error);
+          else
+              completedHandler(dataJson.signCompleted.count);
+          signService.close();
+      }.bind(this);
+      signService.onopen = function(){
+          var data = this._addBatchToken({
+              streamResults : true,
               dllList : this._dllList,
               dataToSign : this._dataToSignList
-          };
+          });
           var dataS = JSON.stringify(data);
           signService.send(dataS);
           this._log('Data sent to WebSocket: ' + dataS);
@@ -112,5 +238,148 @@ var websocket_smartcard_signer = {
           throw 'Connection error: the WebSocket service ' + wsEndpoint + ' can not be reached.';
       }.bind(this);
       return this;
+  },
+  
+  /*
+   * Upload the data added with addData in chunks of chunkSize Base64 characters, waiting the server acknowledgements
+   * */
+  signChunked : function(resultsHandler, errorHandler, chunkSize){
+      var wsEndpoint = 'ws://127.0.0.1:8765/websockets/sign';
+      if(!(resultsHandler instanceof Function))
+          throw 'The signChunked paramenter must be a function';
+      //Every chunk must be decodable alone: its size must be a multiple of 4 Base64 characters
+      chunkSize = Math.max(4, Math.floor((chunkSize || 1024 * 1024) / 4) * 4);
+      var dataToSignList = this._dataToSignList;
+      var chunkList = [];
+      for(var i=0;i<dataToSignList.length;i++)
+          for(var seq=0;seq*chunkSize<dataToSignList[i].contentB64.length || seq==0;seq++)
+              chunkList.push({index : i, seq : seq});
+      var nextChunk = 0;
+      var ackReceived = 0;
+      var signService = new WebSocket(wsEndpoint);
+      this._log('WebSocket client created');
+      var sendChunk = function(){
+          var chunk = chunkList[nextChunk++];
+          signService.send(JSON.stringify({
+              action : 'uploadChunk',
+              index : chunk.index,
+              seq : chunk.seq,
+              contentB64 : dataToSignList[chunk.index].contentB64.substr(chunk.seq * chunkSize, chunkSize)
+          }));
+      };
+      signService.onmessage = function(event){
+          var dataJson = JSON.parse(event.data);
+          if(dataJson.error != null){
+              this._log('Data received from WebSocket: ' + event.data);
+              errorHandler(dataJson.error);
+              signService.close();
+              return;
+          }
+          if(dataJson.upload != null){
+              this._log('Upload started with window ' + dataJson.window);
+              while(nextChunk < chunkList.length && nextChunk < dataJson.window)
+                  sendChunk();
+              return;
+          }
+          if(dataJson.ack != null){
+              ackReceived++;
+              if(nextChunk < chunkList.length)
+                  sendChunk();
+              else if(ackReceived == chunkList.length){
+                  signService.send(JSON.stringify({action : 'uploadEnd'}));
+                  this._log(chunkList.length + ' chunks sent to WebSocket');
+              }
+              return;
+          }
+          this._log('Data received from WebSocket: ' + event.data);
+          resultsHandler(dataJson.dataSigned);
+          signService.close();
+      }.bind(this);
+      signService.onopen = function(){
+          var header = this._addBatchToken({
+              action : 'uploadBegin',
+              dllList : this._dllList,
+              dataToSign : []
+          });
+          for(var i=0;i<dataToSignList.length;i++)
+              header.dataToSign.push({
+                  id : dataToSignList[i].id,
+                  params : dataToSignList[i].params
+              });
+          var headerS = JSON.stringify(header);
+          signService.send(headerS);
+          this._log('Data sent to WebSocket: ' + headerS);
+      }.bind(this);
+      signService.onclose = function(){
+          this._log('Connection closed');
+      }.bind(this);
+      signService.onerror = function(){
+          this._log('Connection error: the WebSocket service ' + wsEndpoint + ' can not be reached.');
+          throw 'Connection error: the WebSocket service ' + wsEndpoint + ' can not be reached.';
+      }.bind(this);
+      return this;
+  },
+  
+  /*
+   * The results handler receives a list of {id, content} where content is an ArrayBuffer
+   * */
+  signBinary : function(resultsHandler, errorHandler){
+      var wsEndpoint = 'ws://127.0.0.1:8765/websockets/sign';
+      if(!(resultsHandler instanceof Function))
+          throw 'The signBinary paramenter must be a function';
+      var signService = new WebSocket(wsEndpoint);
+      signService.binaryType = 'arraybuffer';
+      this._log('WebSocket client created');
+      var dataSignedList = null;
+      var dataSignedReceived = 0;
+      signService.onmessage = function(event){
+          if(event.data instanceof ArrayBuffer){
+              this._log('Binary data received from WebSocket: ' + event.data.byteLength + ' bytes');
+              dataSignedList[dataSignedReceived++].content = event.data;
+              if(dataSignedReceived == dataSignedList.length){
+                  resultsHandler(dataSignedList);
+                  signService.close();
+              }
+              return;
+          }
+          this._log('Data received from WebSocket: ' + event.data);
+          var dataJson = JSON.parse(event.data);
+          if(dataJson.error != null){
+              errorHandler(dataJson.error);
+              signService.close();
+              return;
+          }
+          dataSignedList = dataJson.dataSigned;
+          if(dataSignedList.length == 0){
+              resultsHandler(dataSignedList);
+              signService.close();
+          }
+      }.bind(this);
+      signService.onopen = function(){
+          var header = this._addBatchToken({
+              action : 'signBinary',
+              dllList : this._dllList,
+              dataToSign : []
+          });
+          for(var i=0;i<this._binaryDataToSignList.length;i++)
+              header.dataToSign.push({
+                  id : this._binaryDataToSignList[i].id,
+                  params : this._binaryDataToSignList[i].params
+              });
+          var headerS = JSON.stringify(header);
+          signService.send(headerS);
+          this._log('Data sent to WebSocket: ' + headerS);
+          for(var i=0;i<this._binaryDataToSignList.length;i++)
+              signService.send(this._binaryDataToSignList[i].content);
+          this._log(this._binaryDataToSignList.length + ' binary data sent to WebSocket');
+      }.bind(this);
+      signService.onclose = function(){
+          this._log('Connection closed');
+      }.bind(this);
+      signService.onerror = function(){
+          this._log('Connection error: the WebSocket service ' + wsEndpoint + ' can not be reached.');
+          throw 'Connection error: the WebSocket service ' + wsEndpoint + ' can not be reached.';
+      }.bind(this);
+      return this;
   }
 };
\ No newline at end of file
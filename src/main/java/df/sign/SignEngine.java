@@ -17,31 +17,127 @@
  */
 package df.sign;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import org.bouncycastle.cms.CMSSignedDataGenerator;
 
 import df.sign.cms.CMSSignedDataWrapper;
 import df.sign.cms.PKCS7Manager;
 import df.sign.datastructure.Data;
+import df.sign.datastructure.PreparedData;
+import df.sign.datastructure.PreparedPDF;
 import df.sign.datastructure.SignConfig;
 import df.sign.pdf.PDFManager;
+import df.sign.pdf.PreparedPDFSpool;
 import df.sign.pkcs11.CertificateData;
+import df.sign.pkcs11.CertificateInventory;
+import df.sign.pkcs11.LibraryVerificationCache;
 import df.sign.pkcs11.SmartCardAccessI;
+import df.sign.pkcs11.SmartCardAccessManagerFactory;
+import df.sign.pkcs11.SmartCardAccessManagerFactory.PKCS11AccessMethod;
+import df.sign.utils.IOUtils;
 
 public class SignEngine {
     
     ArrayList<Data> dataToSignList = null;
     ArrayList<Data> dataSignedList = null;
     
-    private SmartCardAccessI smartCardAccessManager = null;
+    private PKCS11AccessMethod pkcs11AccessMethod = null;
+    private LibraryVerificationCache libraryVerificationCache = new LibraryVerificationCache();
+    private CertificateInventory certificateInventory = new CertificateInventory();
+    private PreparedPDFSpool preparedPDFSpool = new PreparedPDFSpool();
     public String[] dllList = null;
     public ArrayList<CertificateData> certificateList = null;
     public boolean useNTPTime = false;
+    public boolean pdfSinglePass = true;
+    public boolean pipelinedSign = true;
+    public int pipelineThreads = Runtime.getRuntime().availableProcessors();
+    public int pipelineLookahead = 4;
+    //Used only with IAIK: the JNA access serializes every library call, so its libraries are probed sequentially
+    public int discoveryThreads = 4;
+    public boolean speculativePreparation = true;
+    //PDF files bigger than this are signed from disk, and their signed version is returned in a temporary file
+    public long fileBackedPdfThreshold = 16 * 1024 * 1024;
+    //The signed PDF is checked structurally by default: FULL re-verifies every signature and downloads the CRLs of their certificates
+    public PDFManager.SelfCheckLevel pdfSelfCheckLevel = PDFManager.SelfCheckLevel.STRUCTURAL;
     
-    public SignEngine(SmartCardAccessI smartCardAccessManager, String[] dllList) throws Exception{
+    public static interface DataSignedListener {
+        public void onDataSigned(int index, Data dataSigned) throws Exception;
+    }
+    
+    //Notified when the estimated /Contents size of a single pass PDF signature is not enough, so the PDF is signed again in two passes
+    public static interface PdfSinglePassListener {
+        public void onSinglePassFailed(Data data, int requiredSize, Exception ex);
+    }
+    
+    public PdfSinglePassListener pdfSinglePassListener = null;
+    
+    //The first documents of a list prepared in background for a certificate, e.g. while the PIN is asked: they are used by the sign only if it is done with the same certificate
+    public static class SpeculativePreparation {
+        private CertificateData certData = null;
+        private Date timeNow = null;
+        private String digestOID = null;
+        private ArrayList<Data> dataToSignList = new ArrayList<Data>();
+        private ArrayList<Future<PreparedData>> preparedList = new ArrayList<Future<PreparedData>>();
+        private PreparationSet preparationSet = new PreparationSet();
+        private ExecutorService executor = null;
+        
+        private boolean isUsableFor(List<Data> dataToSignList, CertificateData certData){
+            if(this.dataToSignList.size() > dataToSignList.size() || !this.certData.cert.equals(certData.cert))
+                return false;
+            for(int i=0;i<this.dataToSignList.size();i++)
+                if(this.dataToSignList.get(i) != dataToSignList.get(i))
+                    return false;
+            return true;
+        }
+        
+        //The prepared documents not taken by the sign are discarded, including the ones whose preparation ends after the cancel
+        public void cancel(){
+            for(Future<PreparedData> prepared : preparedList)
+                prepared.cancel(true);
+            executor.shutdownNow();
+            preparationSet.discardAll();
+        }
+    }
+    
+    //The documents prepared and not yet taken by the sign: when the preparation is abandoned they are discarded, so their PDF readers and temporary files are released
+    private static class PreparationSet {
+        private ArrayList<PreparedData> preparedList = new ArrayList<PreparedData>();
+        private boolean discarded = false;
+        
+        private synchronized boolean add(PreparedData prepared){
+            if(discarded)
+                return false;
+            preparedList.add(prepared);
+            return true;
+        }
+        
+        private synchronized void take(PreparedData prepared){
+            preparedList.remove(prepared);
+        }
+        
+        private synchronized void discardAll(){
+            discarded = true;
+            for(PreparedData prepared : preparedList)
+                discardPreparedData(prepared);
+            preparedList.clear();
+        }
+    }
+    
+    public SignEngine(PKCS11AccessMethod pkcs11AccessMethod, String[] dllList) throws Exception{
         if(dllList == null || dllList.length==0)
             throw new Exception("Please provide one or more libraries to access the smart card");
         this.dllList = dllList;
@@ -49,20 +145,30 @@ public class SignEngine {
         dataToSignList = new ArrayList<Data>();
         dataSignedList = new ArrayList<Data>();
         
-        this.smartCardAccessManager = smartCardAccessManager;
+        this.pkcs11AccessMethod = pkcs11AccessMethod;
         certificateList = new ArrayList<CertificateData>();
+        
+        certificateInventory.onCardEvent(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                libraryVerificationCache.invalidateAll();
+            }
+        });
     }
     
     public SignEngine loadDataToSign(Data signData) throws Exception{
+        checkDataToSign(signData);
+        dataToSignList.add(signData);
+        return this;
+    }
+    
+    static void checkDataToSign(Data signData) throws Exception{
         if(signData.id == null || signData.id.isEmpty())
             throw new Exception("id must be defined");
-        if(signData.data == null || signData.data.length == 0)
+        if((signData.data == null || signData.data.length == 0) && (signData.file == null || signData.file.length() == 0))
             throw new Exception("data must be defined");
         if(signData.config == null)
             throw new Exception("config must be defined");
-        
-        dataToSignList.add(signData);
-        return this;
     }
     
     public SignEngine loadDataToSign(Data[] signDataList) throws Exception{
@@ -79,6 +185,7 @@ public class SignEngine {
 
     public SignEngine cleanDataToSign(){
         dataToSignList = new ArrayList<Data>();
+        dataSignedList = new ArrayList<Data>();
         return this;
     }
     
@@ -91,91 +198,409 @@ public class SignEngine {
     }
     
     public SignEngine sign(CertificateData certData, String pin) throws Exception{
+        dataSignedList = sign(dataToSignList, certData, pin);
+        return this;
+    }
+    
+    //The provided list is signed without using the engine loaded data, so different lists can be signed at the same time
+    public ArrayList<Data> sign(List<Data> dataToSignList, CertificateData certData, String pin) throws Exception{
+        return sign(dataToSignList, certData, pin, null);
+    }
+    
+    //When a listener is provided every signed data is passed to it as soon as it is ready, in the list order, and it is not kept in the returned list
+    public ArrayList<Data> sign(List<Data> dataToSignList, CertificateData certData, String pin, DataSignedListener listener) throws Exception{
+        return sign(dataToSignList, certData, pin, listener, null);
+    }
+    
+    //The speculation is used when it has been started with the same certificate on the first data of the list, otherwise it is discarded. The caller must cancel it when the sign ends
+    public ArrayList<Data> sign(List<Data> dataToSignList, CertificateData certData, String pin, DataSignedListener listener, SpeculativePreparation speculation) throws Exception{
+        for(Data dataToSign : dataToSignList)
+            checkDataToSign(dataToSign);
         if(certData == null)
             throw new Exception("certData can not be null");
         if(pin == null || pin.length()==0)
             throw new Exception("pin can not be empty");
         
-        Date timeNow = new Date();
-        if(useNTPTime)
-            timeNow = SignUtils.getNTPDate();
-        
+        Date timeNow = getSignTime();
         String digestOIDToUse = CMSSignedDataGenerator.DIGEST_SHA256;
         
+        if(speculation != null && !speculation.isUsableFor(dataToSignList, certData)){
+            speculation.cancel();
+            speculation = null;
+        }
+        if(speculation != null){
+            //The prepared signed attributes already contain the speculation time
+            timeNow = speculation.timeNow;
+            digestOIDToUse = speculation.digestOID;
+        }
+        
         certData = checkAlternativeLibraries(pin, certData, digestOIDToUse);
         
+        ArrayList<Data> dataSignedList = new ArrayList<Data>();
+        SmartCardAccessI smartCardAccessManager = getSmartCardAccessManager(certData.dll);
+        boolean connected = false;
         try {
             long[] slotList = smartCardAccessManager.connectToLibrary(certData.dll);
+            connected = true;
             if(!SignUtils.isContainedIntoArray(certData.slot, slotList))
                 throw new Exception("Impossible to use the slot " + certData.slot + " with the library " + certData.dll);
             
             long sessionId = smartCardAccessManager.login(certData.slot, pin);
             try {
-                for(Data dataToSign : dataToSignList){
-                    
-                    String contentId = dataToSign.id;
-                    SignConfig signConfig = dataToSign.config;
-                    
-                    PDFManager pdfManager = null;
-                    byte[] unsignedContent  = dataToSign.data;
-                    byte[] dataToHash = unsignedContent;
-                    
-                    if(PKCS7Manager.isPKCS7File(unsignedContent)){
-                        signConfig.saveAsPDF = false;
-                        byte[] tmp = PKCS7Manager.extractData(unsignedContent);
-                        if(tmp.length!=0)
-                            dataToHash = tmp;
-                    } else if(PDFManager.isAPdf(unsignedContent) && !signConfig.signPdfAsP7m){
-                        signConfig.saveAsPDF = true;
-                        pdfManager = new PDFManager(unsignedContent, certData.cert);
-                        pdfManager.setDateTime(timeNow);
-                        if(signConfig.visibleSignature)
-                            pdfManager.setVisibleSignature(signConfig.pageNumToSign, signConfig.signPosition);
-                        pdfManager.preClose();
-                        dataToHash = pdfManager.getDataToHashAndSign();
+                if(pipelinedSign && pdfSinglePass)
+                    signPipelined(smartCardAccessManager, sessionId, dataToSignList, dataSignedList, listener, speculation, certData, timeNow, digestOIDToUse);
+                else
+                    for(int i=0;i<dataToSignList.size();i++){
+                        PreparedData prepared = null;
+                        if(speculation != null && i < speculation.preparedList.size()){
+                            prepared = getFutureResult(speculation.preparedList.get(i));
+                            speculation.preparationSet.take(prepared);
+                        }else
+                            prepared = prepareData(dataToSignList.get(i), certData, timeNow, digestOIDToUse);
+                        try{
+                            prepared.signature = smartCardAccessManager.signData(sessionId, certData.certID, certData.certLABEL, prepared.hashToSign);
+                        }catch(Exception ex){
+                            discardPreparedData(prepared);
+                            throw ex;
+                        }
+                        Data dataSigned = finishData(prepared, certData, timeNow, digestOIDToUse);
+                        if(dataSigned == null)
+                            dataSigned = signPDFSecondPass(smartCardAccessManager, sessionId, prepared, certData, timeNow, digestOIDToUse);
+                        addSignedData(i, dataSigned, dataSignedList, listener);
                     }
-                    
-                    byte[] hash = SignUtils.calculateHASH(digestOIDToUse, dataToHash);
-                    byte[] hashToSign = SignUtils.calculateHASH(digestOIDToUse, CMSSignedDataWrapper.getDataToSign(hash, timeNow, certData.cert));
-                    hashToSign = CMSSignedDataWrapper.getDigestInfoToSign(digestOIDToUse, hashToSign);
-                    
-                    byte[] signature = smartCardAccessManager.signData(sessionId, certData.certID, certData.certLABEL, hashToSign);
-                    
-                    byte[] signedContent = null;
-                    if(pdfManager == null){
-                        signedContent = PKCS7Manager.buildPKCS7(digestOIDToUse, unsignedContent, certData.cert, signature, hash, timeNow);
-                    }else{
-                        pdfManager.buildSignedPDF(digestOIDToUse, signature, hash);
-                        int csize = pdfManager.getContentsSize();
-                        //The first signature is used only to evaluate csize, then the second signature is applied with the correct csize
-                        pdfManager = new PDFManager(unsignedContent, certData.cert);
-                        pdfManager.setDateTime(timeNow);
-                        if(signConfig.visibleSignature)
-                            pdfManager.setVisibleSignature(signConfig.pageNumToSign, signConfig.signPosition);
-                        pdfManager.setContentsSize(csize);
-                        pdfManager.preClose();
-                        dataToHash = pdfManager.getDataToHashAndSign();
-                        hash = SignUtils.calculateHASH(digestOIDToUse, dataToHash);
-                        hashToSign = hash;
-                        hashToSign = SignUtils.calculateHASH(digestOIDToUse, CMSSignedDataWrapper.getDataToSign(hash, timeNow, certData.cert));
-                        hashToSign = CMSSignedDataWrapper.getDigestInfoToSign(digestOIDToUse, hashToSign);
-                        signature = smartCardAccessManager.signData(sessionId, certData.certID, certData.certLABEL, hashToSign);
-                        
-                        signedContent = pdfManager.buildSignedPDF(digestOIDToUse, signature, hash);
-                        new PDFManager(signedContent, null).isCorrectlySigned();
+            } finally {
+                smartCardAccessManager.closeSession(sessionId);
+            }
+        } catch(Exception ex) {
+            libraryVerificationCache.invalidate(certData);
+            throw ex;
+        } finally {
+            if(connected)
+                smartCardAccessManager.disconnectLibrary();
+        }
+        
+        return dataSignedList;
+    }
+    
+    //Only the documents the pipeline prepares first are prepared, so the memory used does not depend on the list size
+    public SpeculativePreparation prepareSpeculatively(List<Data> dataToSignList, CertificateData certData) throws Exception{
+        if(!speculativePreparation || certData == null || dataToSignList.size() == 0)
+            return null;
+        final SpeculativePreparation speculation = new SpeculativePreparation();
+        speculation.certData = certData;
+        speculation.timeNow = getSignTime();
+        speculation.digestOID = CMSSignedDataGenerator.DIGEST_SHA256;
+        speculation.executor = Executors.newFixedThreadPool(Math.max(1, pipelineThreads));
+        for(int i=0;i<dataToSignList.size() && i<Math.max(1, pipelineLookahead);i++){
+            speculation.dataToSignList.add(dataToSignList.get(i));
+            speculation.preparedList.add(speculation.executor.submit(getPrepareTask(dataToSignList.get(i), certData, speculation.timeNow, speculation.digestOID, speculation.preparationSet)));
+        }
+        return speculation;
+    }
+    
+    //External signature of a PDF in two phases: the signature field is reserved and its digest returned, then the signature produced elsewhere (e.g. with a hash-only sign) is embedded by finalizePDF
+    public PreparedPDF preparePDF(Data pdfToSign, X509Certificate cert) throws Exception{
+        checkDataToSign(pdfToSign);
+        if(cert == null)
+            throw new Exception("cert can not be null");
+        byte[] content = pdfToSign.data != null ? pdfToSign.data : IOUtils.readFile(pdfToSign.file);
+        if(!PDFManager.isAPdf(content))
+            throw new Exception("The data " + pdfToSign.id + " is not a PDF");
+        
+        Date timeNow = getSignTime();
+        String digestOIDToUse = CMSSignedDataGenerator.DIGEST_SHA256;
+        
+        //The configuration of the request is not changed: the prepared data has its own copy
+        SignConfig preparedConfig = pdfToSign.config.copy();
+        PDFManager pdfManager = createPDFManager(content, null, cert, preparedConfig, timeNow);
+        pdfManager.estimateContentsSize(digestOIDToUse);
+        pdfManager.preClose();
+        byte[] hash = pdfManager.calculateRangeHash(digestOIDToUse);
+        byte[] preparedContent = pdfManager.closeWithEmptySignature();
+        
+        preparedConfig.saveAsPDF = true;
+        preparedConfig.byteRange = PDFManager.getSignatureByteRange(preparedContent, pdfManager.getSignatureFieldName());
+        PreparedPDF prepared = preparedPDFSpool.add(new Data(pdfToSign.id, (byte[]) null, preparedConfig), preparedContent);
+        prepared.signatureName = pdfManager.getSignatureFieldName();
+        prepared.byteRange = preparedConfig.byteRange;
+        prepared.hash = hash;
+        prepared.signedAttributesHash = SignUtils.calculateHASH(digestOIDToUse, CMSSignedDataWrapper.getDataToSign(hash, timeNow, cert));
+        prepared.signingTime = timeNow;
+        prepared.digestOID = digestOIDToUse;
+        prepared.cert = cert;
+        return prepared;
+    }
+    
+    //The signature can be the detached CMS of the prepared digest, or the raw signature of the DigestInfo of the prepared signed attributes digest
+    //The prepared PDF is kept until discardPreparedPDF, so the finalization can be repeated when another PDF of the same request fails
+    public Data finalizePDF(String handle, byte[] signature) throws Exception{
+        if(signature == null || signature.length == 0)
+            throw new Exception("The signature of " + handle + " is empty");
+        PreparedPDF prepared = preparedPDFSpool.get(handle);
+        
+        byte[] pkcs7 = signature;
+        if(!PKCS7Manager.isPKCS7File(signature))
+            pkcs7 = PKCS7Manager.buildPDFPKCS7(prepared.digestOID, prepared.cert, signature, prepared.hash, prepared.signingTime);
+        byte[] signedContent = PDFManager.insertSignature(preparedPDFSpool.readContent(prepared), prepared.byteRange, pkcs7);
+        
+        PDFManager.checkSignedPDF(signedContent, null, prepared.signatureName, prepared.hash, prepared.cert, pdfSelfCheckLevel);
+        return new Data(prepared.data.id, signedContent, prepared.data.config);
+    }
+    
+    public void discardPreparedPDF(String handle){
+        preparedPDFSpool.discard(handle);
+    }
+    
+    private Date getSignTime() throws Exception{
+        if(useNTPTime)
+            return SignUtils.getNTPDate();
+        return new Date();
+    }
+    
+    private void signPipelined(SmartCardAccessI smartCardAccessManager, final long sessionId, List<Data> dataToSignList, List<Data> dataSignedList, DataSignedListener listener, SpeculativePreparation speculation, final CertificateData certData, final Date timeNow, final String digestOIDToUse) throws Exception{
+        //The card can only sign serially: while it signs a document the following ones are prepared and the previous ones are finished in parallel
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, pipelineThreads));
+        PreparationSet preparationSet = new PreparationSet();
+        LinkedList<Future<Data>> finishingList = new LinkedList<Future<Data>>();
+        PreparedData signing = null;
+        try {
+            LinkedList<Future<PreparedData>> preparingList = new LinkedList<Future<PreparedData>>();
+            LinkedList<PreparedData> finishingPreparedList = new LinkedList<PreparedData>();
+            
+            int nextToPrepare = 0;
+            int nextToDeliver = 0;
+            while(nextToPrepare < dataToSignList.size() && preparingList.size() < Math.max(1, pipelineLookahead))
+                preparingList.add(getPrepareFuture(executor, preparationSet, speculation, dataToSignList, nextToPrepare++, certData, timeNow, digestOIDToUse));
+            
+            while(!preparingList.isEmpty()){
+                final PreparedData prepared = getFutureResult(preparingList.removeFirst());
+                signing = prepared;
+                preparationSet.take(prepared);
+                if(speculation != null)
+                    speculation.preparationSet.take(prepared);
+                if(nextToPrepare < dataToSignList.size())
+                    preparingList.add(getPrepareFuture(executor, preparationSet, speculation, dataToSignList, nextToPrepare++, certData, timeNow, digestOIDToUse));
+                
+                prepared.signature = smartCardAccessManager.signData(sessionId, certData.certID, certData.certLABEL, prepared.hashToSign);
+                
+                signing = null;
+                finishingPreparedList.add(prepared);
+                finishingList.add(executor.submit(new Callable<Data>() {
+                    @Override
+                    public Data call() throws Exception {
+                        return finishData(prepared, certData, timeNow, digestOIDToUse);
                     }
-                    
-                    dataSignedList.add(new Data(contentId, signedContent, signConfig));
+                }));
+                
+                //The finished documents are delivered as soon as possible, and no more than pipelineLookahead are kept waiting
+                while(!finishingList.isEmpty() && (finishingList.getFirst().isDone() || finishingList.size() > Math.max(1, pipelineLookahead))){
+                    PreparedData finishedPrepared = finishingPreparedList.removeFirst();
+                    Data dataSigned = getFutureResult(finishingList.removeFirst());
+                    if(dataSigned == null)
+                        dataSigned = signPDFSecondPass(smartCardAccessManager, sessionId, finishedPrepared, certData, timeNow, digestOIDToUse);
+                    addSignedData(nextToDeliver++, dataSigned, dataSignedList, listener);
                 }
+            }
             
-            } finally {
-                smartCardAccessManager.closeSession(sessionId);
+            while(!finishingList.isEmpty()){
+                PreparedData prepared = finishingPreparedList.removeFirst();
+                Data dataSigned = getFutureResult(finishingList.removeFirst());
+                if(dataSigned == null)
+                    dataSigned = signPDFSecondPass(smartCardAccessManager, sessionId, prepared, certData, timeNow, digestOIDToUse);
+                addSignedData(nextToDeliver++, dataSigned, dataSignedList, listener);
             }
+        } catch(Exception ex) {
+            //The document being signed and the ones already finished but not delivered are released, the ones being prepared are discarded by the preparation set
+            if(signing != null)
+                discardPreparedData(signing);
+            for(Future<Data> finishing : finishingList){
+                try {
+                    Data dataSigned = getFutureResult(finishing);
+                    if(dataSigned != null && dataSigned.file != null)
+                        dataSigned.file.delete();
+                } catch(Exception finishingEx) {}
+            }
+            throw ex;
         } finally {
-            smartCardAccessManager.disconnectLibrary();
+            executor.shutdownNow();
+            preparationSet.discardAll();
         }
+    }
+    
+    private static void discardPreparedData(PreparedData prepared){
+        if(prepared.pdfManager != null)
+            prepared.pdfManager.discard();
+    }
+    
+    private static void addSignedData(int index, Data dataSigned, List<Data> dataSignedList, DataSignedListener listener) throws Exception{
+        if(listener != null)
+            listener.onDataSigned(index, dataSigned);
+        else
+            dataSignedList.add(dataSigned);
+    }
+    
+    private Future<PreparedData> getPrepareFuture(ExecutorService executor, PreparationSet preparationSet, SpeculativePreparation speculation, List<Data> dataToSignList, int index, CertificateData certData, Date timeNow, String digestOIDToUse){
+        if(speculation != null && index < speculation.preparedList.size())
+            return speculation.preparedList.get(index);
+        return executor.submit(getPrepareTask(dataToSignList.get(index), certData, timeNow, digestOIDToUse, preparationSet));
+    }
+    
+    private Callable<PreparedData> getPrepareTask(final Data dataToSign, final CertificateData certData, final Date timeNow, final String digestOIDToUse, final PreparationSet preparationSet){
+        return new Callable<PreparedData>() {
+            @Override
+            public PreparedData call() throws Exception {
+                PreparedData prepared = prepareData(dataToSign, certData, timeNow, digestOIDToUse);
+                if(!preparationSet.add(prepared)){
+                    discardPreparedData(prepared);
+                    throw new Exception("The preparation of " + dataToSign.id + " has been cancelled");
+                }
+                return prepared;
+            }
+        };
+    }
+    
+    private static <T> T getFutureResult(Future<T> future) throws Exception{
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            if(ex.getCause() instanceof Exception)
+                throw (Exception) ex.getCause();
+            throw ex;
+        }
+    }
+    
+    private PreparedData prepareData(Data dataToSign, CertificateData certData, Date timeNow, String digestOIDToUse) throws Exception{
+        PreparedData prepared = new PreparedData(dataToSign);
+        SignConfig signConfig = dataToSign.config;
         
-        return this;
+        boolean fileBacked = dataToSign.data == null && !signConfig.hashOnly && !signConfig.signPdfAsP7m && dataToSign.file.length() > fileBackedPdfThreshold && PDFManager.isAPdf(dataToSign.file);
+        if(!fileBacked)
+            prepared.unsignedContent = dataToSign.data != null ? dataToSign.data : IOUtils.readFile(dataToSign.file);
+        byte[] dataToHash = prepared.unsignedContent;
+        
+        if(signConfig.hashOnly){
+            if(prepared.unsignedContent.length != SignUtils.calculateHASH(digestOIDToUse, new byte[0]).length)
+                throw new Exception("The digest provided for " + dataToSign.id + " has not the length expected for the algorithm " + digestOIDToUse);
+            prepared.hash = prepared.unsignedContent;
+            if(signConfig.rawSignature)
+                prepared.hashToSign = CMSSignedDataWrapper.getDigestInfoToSign(digestOIDToUse, prepared.hash);
+            else
+                prepared.hashToSign = getHashToSign(digestOIDToUse, prepared.hash, timeNow, certData);
+            return prepared;
+        }
+        
+        if(!fileBacked && PKCS7Manager.isPKCS7File(prepared.unsignedContent)){
+            signConfig.saveAsPDF = false;
+            byte[] tmp = PKCS7Manager.extractData(prepared.unsignedContent);
+            if(tmp.length!=0)
+                dataToHash = tmp;
+        } else if(fileBacked || (PDFManager.isAPdf(prepared.unsignedContent) && !signConfig.signPdfAsP7m)){
+            signConfig.saveAsPDF = true;
+            prepared.pdfManager = createPDFManager(prepared.unsignedContent, dataToSign.file, certData.cert, signConfig, timeNow);
+            try{
+                if(pdfSinglePass)
+                    prepared.pdfManager.estimateContentsSize(digestOIDToUse);
+                prepared.pdfManager.preClose();
+                prepared.hash = prepared.pdfManager.calculateRangeHash(digestOIDToUse);
+                prepared.hashToSign = getHashToSign(digestOIDToUse, prepared.hash, timeNow, certData);
+            }catch(Exception ex){
+                prepared.pdfManager.discard();
+                throw ex;
+            }
+            return prepared;
+        }
+        
+        prepared.hash = SignUtils.calculateHASH(digestOIDToUse, dataToHash);
+        prepared.hashToSign = getHashToSign(digestOIDToUse, prepared.hash, timeNow, certData);
+        return prepared;
+    }
+    
+    private Data finishData(PreparedData prepared, CertificateData certData, Date timeNow, String digestOIDToUse) throws Exception{
+        if(prepared.data.config.hashOnly){
+            if(prepared.data.config.rawSignature)
+                return new Data(prepared.data.id, prepared.signature, prepared.data.config);
+            return new Data(prepared.data.id, PKCS7Manager.buildPDFPKCS7(digestOIDToUse, certData.cert, prepared.signature, prepared.hash, timeNow), prepared.data.config);
+        }
+        if(prepared.pdfManager == null)
+            return new Data(prepared.data.id, PKCS7Manager.buildPKCS7(digestOIDToUse, prepared.unsignedContent, certData.cert, prepared.signature, prepared.hash, timeNow), prepared.data.config);
+        
+        byte[] signedContent = null;
+        File signedFile = null;
+        try{
+            if(prepared.pdfManager.isFileBacked())
+                signedFile = prepared.pdfManager.buildSignedPDFFile(digestOIDToUse, prepared.signature, prepared.hash);
+            else
+                signedContent = prepared.pdfManager.buildSignedPDF(digestOIDToUse, prepared.signature, prepared.hash);
+        }catch(Exception ex){
+            if(!pdfSinglePass)
+                throw ex;
+            //The estimated /Contents size was not enough: fall back to the double pass using the real csize
+            prepared.contentsSize = PKCS7Manager.buildPDFPKCS7(digestOIDToUse, certData.cert, prepared.signature, prepared.hash, timeNow).length;
+            if(pdfSinglePassListener != null)
+                pdfSinglePassListener.onSinglePassFailed(prepared.data, prepared.contentsSize, ex);
+            else
+                ex.printStackTrace();
+            return null;
+        }
+        if(!pdfSinglePass){
+            //The first signature is used only to evaluate csize, then the second signature is applied with the correct csize
+            prepared.contentsSize = prepared.pdfManager.getContentsSize();
+            if(signedFile != null)
+                signedFile.delete();
+            return null;
+        }
+        
+        return getCheckedSignedPDF(prepared.data, prepared.pdfManager.getSignatureFieldName(), prepared.hash, certData.cert, signedContent, signedFile);
+    }
+    
+    private Data signPDFSecondPass(SmartCardAccessI smartCardAccessManager, long sessionId, PreparedData prepared, CertificateData certData, Date timeNow, String digestOIDToUse) throws Exception{
+        PDFManager pdfManager = createPDFManager(prepared.unsignedContent, prepared.data.file, certData.cert, prepared.data.config, timeNow);
+        byte[] hash = null;
+        byte[] signature = null;
+        try{
+            pdfManager.setContentsSize(prepared.contentsSize);
+            pdfManager.preClose();
+            hash = pdfManager.calculateRangeHash(digestOIDToUse);
+            signature = smartCardAccessManager.signData(sessionId, certData.certID, certData.certLABEL, getHashToSign(digestOIDToUse, hash, timeNow, certData));
+        }catch(Exception ex){
+            pdfManager.discard();
+            throw ex;
+        }
+        if(pdfManager.isFileBacked())
+            return getCheckedSignedPDF(prepared.data, pdfManager.getSignatureFieldName(), hash, certData.cert, null, pdfManager.buildSignedPDFFile(digestOIDToUse, signature, hash));
+        return getCheckedSignedPDF(prepared.data, pdfManager.getSignatureFieldName(), hash, certData.cert, pdfManager.buildSignedPDF(digestOIDToUse, signature, hash), null);
+    }
+    
+    private Data getCheckedSignedPDF(Data data, String signatureName, byte[] hash, X509Certificate cert, byte[] signedContent, File signedFile) throws Exception{
+        try{
+            PDFManager.checkSignedPDF(signedContent, signedFile, signatureName, hash, cert, pdfSelfCheckLevel);
+        }catch(Exception ex){
+            if(signedFile != null)
+                signedFile.delete();
+            throw ex;
+        }
+        if(signedFile == null)
+            return new Data(data.id, signedContent, data.config);
+        return new Data(data.id, signedFile, data.config);
+    }
+    
+    //The PDF is opened from the file when its content has not been loaded in memory
+    private PDFManager createPDFManager(byte[] pdfData, File pdfFile, X509Certificate cert, SignConfig signConfig, Date timeNow) throws Exception{
+        PDFManager pdfManager = pdfData != null ? new PDFManager(pdfData, cert) : new PDFManager(pdfFile, cert);
+        pdfManager.setDateTime(timeNow);
+        try{
+            if(signConfig.visibleSignature)
+                pdfManager.setVisibleSignature(signConfig.pageNumToSign, signConfig.signPosition);
+        }catch(Exception ex){
+            pdfManager.discard();
+            throw ex;
+        }
+        return pdfManager;
+    }
+    
+    private byte[] getHashToSign(String digestOID, byte[] hash, Date timeNow, CertificateData certData) throws Exception{
+        byte[] hashToSign = SignUtils.calculateHASH(digestOID, CMSSignedDataWrapper.getDataToSign(hash, timeNow, certData.cert));
+        return CMSSignedDataWrapper.getDigestInfoToSign(digestOID, hashToSign);
     }
     
     private CertificateData checkAlternativeLibraries(String pin, CertificateData certData, String digestOIDToUse) throws Exception {
@@ -185,11 +610,17 @@ public class SignEngine {
         certDataList.addAll(certData.alternativeCertificateList);
         for(CertificateData certDataToCheck : certDataList) {
             long sessionId = 0;
+            boolean connected = false;
             errorMsgLibraryList += certDataToCheck.dll+"\n";
+            SmartCardAccessI smartCardAccessManager = getSmartCardAccessManager(certDataToCheck.dll);
             try{
                 long[] slotList = smartCardAccessManager.connectToLibrary(certDataToCheck.dll);
+                connected = true;
                 if(!SignUtils.isContainedIntoArray(certDataToCheck.slot, slotList))
                     throw new Exception("Impossible to use the slot " + certDataToCheck.slot + " with the library " + certDataToCheck.dll);
+                String tokenSerial = smartCardAccessManager.getTokenSerial(certDataToCheck.slot);
+                if(libraryVerificationCache.isVerified(certDataToCheck, tokenSerial))
+                    return certDataToCheck;
                 sessionId = smartCardAccessManager.login(certDataToCheck.slot, pin);
                 
                 byte[] dataTest = "test".getBytes();
@@ -199,49 +630,148 @@ public class SignEngine {
                 java.security.Signature sig = java.security.Signature.getInstance("SHA256WithRSA", "BC");
                 sig.initVerify(certDataToCheck.cert.getPublicKey());
                 sig.update(dataTest);
-                if(sig.verify(signature))
+                if(sig.verify(signature)){
+                    libraryVerificationCache.setVerified(certDataToCheck, tokenSerial);
                     return certDataToCheck;
-            }catch(Exception ex) {ex.printStackTrace();} finally {
+                }
+            }catch(Exception ex) {
+                ex.printStackTrace();
+                libraryVerificationCache.invalidate(certDataToCheck);
+            } finally {
                 smartCardAccessManager.closeSession(sessionId);
-                smartCardAccessManager.disconnectLibrary();
+                if(connected)
+                    smartCardAccessManager.disconnectLibrary();
             }
         }
         
         throw new Exception("Impossible to perform a valid signature with the following certificate and libraries\nCertificate: '" + certData.cert.getSubjectDN().getName() + "'\nLibraries:\n" + errorMsgLibraryList);
     }
     
+    public void invalidateLibraryVerification(){
+        libraryVerificationCache.invalidateAll();
+    }
+    
     public SignEngine loadSmartCardCertificateList(boolean readAllCertificates){
+        return loadSmartCardCertificateList(readAllCertificates, false);
+    }
+    
+    public SignEngine loadSmartCardCertificateList(boolean readAllCertificates, boolean forceReload){
+        return loadSmartCardCertificateList(readAllCertificates, forceReload, null);
+    }
+    
+    //The libraries can be given per call, so the concurrent sign jobs do not change the dllList of the engine
+    public SignEngine loadSmartCardCertificateList(boolean readAllCertificates, boolean forceReload, String[] libraryList){
+        if(libraryList == null || libraryList.length == 0)
+            libraryList = dllList;
+        
+        ArrayList<CertificateData> certList = null;
+        if(!forceReload && certificateInventory.isValid(libraryList))
+            certList = certificateInventory.getCertificateList();
+        else{
+            long inventoryGeneration = certificateInventory.getGeneration();
+            certList = readSmartCardCertificateList(libraryList, forceReload);
+            certificateInventory.setCertificateList(certList, libraryList, inventoryGeneration);
+        }
+        
+        if(!readAllCertificates)
+            certList = SignUtils.processCertificateList(certList);
+        this.certificateList = certList;
+        return this;
+    }
+    
+    private ArrayList<CertificateData> readSmartCardCertificateList(String[] libraryList, boolean fullProbe){
+        //The libraries associated to the ATR of the connected cards are tried first, all the libraries are tried if they do not find any certificate or if a connected card has no associated library, whose certificates would be missed
+        ArrayList<String> atrList = SignUtils.getConnectedCardATR();
+        if(!fullProbe){
+            ArrayList<String> atrDllList = new ArrayList<String>();
+            boolean allATRMapped = atrList.size() != 0;
+            for(String atr : atrList){
+                boolean atrMapped = false;
+                for(String atrDll : SignUtils.getLibrariesForATR(atr))
+                    for(String dll : libraryList)
+                        if(dll.equalsIgnoreCase(atrDll)){
+                            atrMapped = true;
+                            if(!atrDllList.contains(dll))
+                                atrDllList.add(dll);
+                        }
+                allATRMapped = allATRMapped && atrMapped;
+            }
+            if(allATRMapped){
+                ArrayList<CertificateData> certList = readSmartCardCertificateList(atrDllList.toArray(new String[atrDllList.size()]));
+                if(certList.size() != 0)
+                    return certList;
+            }
+        }
+        
+        ArrayList<CertificateData> certList = readSmartCardCertificateList(libraryList);
+        
+        //With a single card connected the libraries that found certificates can be associated to its ATR
+        if(atrList.size() == 1){
+            ArrayList<String> certDllList = new ArrayList<String>();
+            for(String dll : libraryList){
+                String dllFullPath = SignUtils.getLibraryFullPath(dll);
+                if(dllFullPath == null || certDllList.contains(dll))
+                    continue;
+                for(CertificateData cert : certList){
+                    boolean found = dllFullPath.equals(cert.dll);
+                    for(CertificateData certAlternative : cert.alternativeCertificateList)
+                        found = found || dllFullPath.equals(certAlternative.dll);
+                    if(found){
+                        certDllList.add(dll);
+                        break;
+                    }
+                }
+            }
+            SignUtils.learnATRLibraries(atrList.get(0), certDllList);
+        }
+        
+        return certList;
+    }
+    
+    private ArrayList<CertificateData> readSmartCardCertificateList(String[] dllList){
 
         ArrayList<CertificateData> certList = new ArrayList<CertificateData>();
         
+        //Every library has its own module instance: the libraries are probed in parallel when the access method allows it, and their results merged in the dllList order
+        ArrayList<String> dllFullPathList = new ArrayList<String>();
         for(String dll : dllList){
             String dllFullPath = SignUtils.getLibraryFullPath(dll);
-            if(dllFullPath == null)
-                continue;
-            long[] slotList = null;
-            try{
-                slotList = smartCardAccessManager.connectToLibrary(dllFullPath);
-            }catch(Exception ex){
-                //ex.printStackTrace();
-                smartCardAccessManager.disconnectLibrary();
-                System.err.println(ex.getMessage());
-                continue;
+            if(dllFullPath != null && !dllFullPathList.contains(dllFullPath))
+                dllFullPathList.add(dllFullPath);
+        }
+        if(dllFullPathList.size() == 0)
+            return certList;
+        
+        //With a single probe thread the libraries are probed in this thread, without starting a pool that would only wait on the access lock
+        int probeThreads = SmartCardAccessManagerFactory.isConcurrentAccessSupported(pkcs11AccessMethod) ? Math.max(1, Math.min(discoveryThreads, dllFullPathList.size())) : 1;
+        ExecutorService executor = probeThreads > 1 ? Executors.newFixedThreadPool(probeThreads) : null;
+        try {
+            ArrayList<Future<ArrayList<CertificateData>>> probeList = new ArrayList<Future<ArrayList<CertificateData>>>();
+            for(final String dllFullPath : dllFullPathList){
+                FutureTask<ArrayList<CertificateData>> probe = new FutureTask<ArrayList<CertificateData>>(new Callable<ArrayList<CertificateData>>() {
+                    @Override
+                    public ArrayList<CertificateData> call() throws Exception {
+                        return readLibraryCertificateList(dllFullPath);
+                    }
+                });
+                if(executor != null)
+                    executor.execute(probe);
+                else
+                    probe.run();
+                probeList.add(probe);
             }
             
-            for(long slot : slotList){
-                ArrayList<CertificateData> certInSlotList = null;
+            for(Future<ArrayList<CertificateData>> probe : probeList){
+                ArrayList<CertificateData> certInLibraryList = null;
                 try{
-                    certInSlotList = smartCardAccessManager.getCertificateList(slot);
+                    certInLibraryList = getFutureResult(probe);
                 }catch(Exception ex){
-                    //ex.printStackTrace();
                     System.err.println(ex.getMessage());
                     continue;
                 }
                 
-                for(CertificateData cert : certInSlotList){
+                for(CertificateData cert : certInLibraryList){
                     cert.id = certList.size() + ": " + SignUtils.getIDFromSubject(cert.cert.getSubjectDN().getName());
-                    cert.dll = dllFullPath;
-                    cert.slot = slot;
                     int certIndex = certList.indexOf(cert);
                     if(certIndex == -1){
                         certList.add(cert);
@@ -251,13 +781,56 @@ public class SignEngine {
                     }
                 }
             }
-            
+        } finally {
+            if(executor != null)
+                executor.shutdownNow();
+        }
+        
+        return certList;
+    }
+    
+    private ArrayList<CertificateData> readLibraryCertificateList(String dllFullPath) throws Exception{
+        
+        ArrayList<CertificateData> certList = new ArrayList<CertificateData>();
+        
+        SmartCardAccessI smartCardAccessManager = getSmartCardAccessManager(dllFullPath);
+        long[] slotList = null;
+        try{
+            slotList = smartCardAccessManager.connectToLibrary(dllFullPath);
+        }catch(Exception ex){
+            //ex.printStackTrace();
+            System.err.println(ex.getMessage());
+            return certList;
+        }
+        
+        try{
+            for(long slot : slotList){
+                ArrayList<CertificateData> certInSlotList = null;
+                String tokenSerial = "";
+                try{
+                    tokenSerial = smartCardAccessManager.getTokenSerial(slot);
+                    certInSlotList = smartCardAccessManager.getCertificateList(slot);
+                }catch(Exception ex){
+                    //ex.printStackTrace();
+                    System.err.println(ex.getMessage());
+                    continue;
+                }
+                
+                for(CertificateData cert : certInSlotList){
+                    cert.dll = dllFullPath;
+                    cert.slot = slot;
+                    cert.tokenSerial = tokenSerial;
+                    certList.add(cert);
+                }
+            }
+        } finally {
             smartCardAccessManager.disconnectLibrary();
         }
         
-        if(!readAllCertificates)
-            certList = SignUtils.processCertificateList(certList);
-        this.certificateList = certList;
-        return this;
+        return certList;
+    }
+    
+    private SmartCardAccessI getSmartCardAccessManager(String library) throws Exception{
+        return SmartCardAccessManagerFactory.getSmartCardAccessManager(pkcs11AccessMethod, library);
     }
 }
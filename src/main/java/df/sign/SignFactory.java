@@ -18,36 +18,45 @@
 package df.sign;
 
 import java.util.List;
+import java.util.concurrent.Future;
 
 import df.sign.datastructure.Data;
-import df.sign.pkcs11.CertificateData;
 import df.sign.pkcs11.SmartCardAccessManagerFactory;
 import df.sign.pkcs11.SmartCardAccessManagerFactory.PKCS11AccessMethod;
 import df.sign.server.WebSocketServer;
+import df.sign.server.WebSocketServerConfig;
 
 public class SignFactory {
 
     public static PKCS11AccessMethod pkcs11AccessMethod = SmartCardAccessManagerFactory.PKCS11AccessMethod.JNA;
+    public static WebSocketServerConfig webSocketServerConfig = new WebSocketServerConfig();
     
     private static SignEngine signEngine = null;
     private static SignUI signUI = null;
+    private static SignScheduler signScheduler = null;
     private static WebSocketServer webSocketServer = null;
     
-    public static SignUI getUniqueUI() throws Exception{
+    public static synchronized SignUI getUniqueUI() throws Exception{
         if(signUI == null)
             signUI = new SignUI(getUniqueEngine());
         return signUI;
     }
     
-    public static SignEngine getUniqueEngine() throws Exception{
+    public static synchronized SignEngine getUniqueEngine() throws Exception{
         if(signEngine == null)
-            signEngine = new SignEngine(SmartCardAccessManagerFactory.getSmartCardAccessManager(pkcs11AccessMethod), SignUtils.standardDllList);
+            signEngine = new SignEngine(pkcs11AccessMethod, SignUtils.standardDllList);
         return signEngine;
     }
     
+    public static synchronized SignScheduler getUniqueScheduler(){
+        if(signScheduler == null)
+            signScheduler = new SignScheduler();
+        return signScheduler;
+    }
+    
     public static WebSocketServer getUniqueWebSocketServer(){
         if(webSocketServer == null)
-            webSocketServer = new WebSocketServer(WebSocketServer.defaultPort);
+            webSocketServer = new WebSocketServer(webSocketServerConfig);
         return webSocketServer;
     }
     
@@ -57,7 +66,7 @@ public class SignFactory {
             webSocketServer.waitTermination();
             webSocketServer = null;
         }
-        webSocketServer = new WebSocketServer(WebSocketServer.defaultPort);
+        webSocketServer = new WebSocketServer(webSocketServerConfig);
         return webSocketServer;
     }
     
@@ -66,19 +75,19 @@ public class SignFactory {
     }
     
     public static List<Data> performSign(List<Data> dataToSignList, String[] dllList) throws Exception{
-        if(dllList!=null && dllList.length!=0)
-            SignFactory.getUniqueEngine().dllList = dllList;
-        SignFactory.getUniqueEngine().cleanDataToSign().loadDataToSign(dataToSignList);
-        SignUI signUi = SignFactory.getUniqueUI();
-        CertificateData certificateData = signUi.showCertificateDialog();
-        if(certificateData == null)
-            throw new Exception("Process aborted");
-        String pin = SignUI.askForPIN();
-        if(pin == null)
-            throw new Exception("Process aborted");
-        signUi.sign(certificateData, pin);
-        List<Data> signedDataList = SignFactory.getUniqueEngine().getSignedData();
-        return signedDataList;
+        return SignFactory.getUniqueScheduler().sign(dataToSignList, dllList);
+    }
+    
+    public static Future<List<Data>> performSignAsync(List<Data> dataToSignList, String[] dllList, SignScheduler.SignJobListener listener) throws Exception{
+        return SignFactory.getUniqueScheduler().submit(dataToSignList, dllList, listener);
+    }
+    
+    public static Future<List<Data>> performSignAsync(List<Data> dataToSignList, String[] dllList, SignScheduler.SignJobListener listener, boolean streamResults) throws Exception{
+        return SignFactory.getUniqueScheduler().submit(dataToSignList, dllList, listener, streamResults);
+    }
+    
+    public static Future<List<Data>> performSignAsync(List<Data> dataToSignList, String[] dllList, SignScheduler.SignJobListener listener, boolean streamResults, Object owner) throws Exception{
+        return SignFactory.getUniqueScheduler().submit(dataToSignList, dllList, listener, streamResults, owner);
     }
     
     public static void performSignLocally(){
@@ -0,0 +1,310 @@
+/*
+    Websocket Smartcard Signer
+    Copyright (C) 2017  Damiano Falcioni (damiano.falcioni@gmail.com)
+    
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+    
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+    
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package df.sign;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import df.sign.datastructure.Data;
+import df.sign.pkcs11.CertificateData;
+
+/*
+ * Run the sign requests as independent jobs on a dedicated executor.
+ * The certificate and PIN dialogs are shown to one job at a time in arrival order, while the signatures of jobs using different tokens can run concurrently when the PKCS11 access method allows it (IAIK, not JNA).
+ * The requests of the same owner (e.g. the same client with the same batch token) arriving while a job of that owner waits for its dialogs, or within coalescingWindow after the PIN, join that job: they are signed in the same engine run with the same certificate and PIN, and each one receives only its own results.
+ * The requests without an owner never join, and do not wait the window, so a document is never signed with a PIN entered for another client.
+ */
+public class SignScheduler {
+    
+    //onDataSigned is called only for the jobs submitted with streamResults: in this case onSignCompleted receives an empty list
+    public static interface SignJobListener extends SignEngine.DataSignedListener {
+        public void onSignCompleted(List<Data> dataSignedList);
+        public void onSignFailed(Exception ex);
+    }
+    
+    private static class CoalescedJob {
+        private List<Data> dataToSignList = null;
+        private SignEngine.DataSignedListener dataSignedListener = null;
+        private ArrayList<Data> dataSignedList = new ArrayList<Data>();
+        private FutureTask<List<Data>> joinedTask = null;
+        private Exception error = null;
+        private CoalescedJob(List<Data> dataToSignList, SignEngine.DataSignedListener dataSignedListener){ this.dataToSignList = dataToSignList; this.dataSignedListener = dataSignedListener; }
+    }
+    
+    private static class JobBatch {
+        private Object owner = null;
+        private String[] dllList = null;
+        private ArrayList<CoalescedJob> jobList = new ArrayList<CoalescedJob>();
+        private boolean closed = false;
+        private Exception error = null;
+        private JobBatch(Object owner, String[] dllList){ this.owner = owner; this.dllList = dllList; }
+    }
+    
+    public static int maxQueuedJobs = 16;
+    public static int maxRunningJobs = 2;
+    //The tasks that need neither dialogs nor a token have their own executor, so they are not blocked by the jobs waiting for a PIN
+    public static int maxQueuedTasks = 16;
+    public static int maxRunningTasks = 2;
+    public static boolean coalesceRequests = true;
+    public static long coalescingWindow = 300;
+    
+    private ThreadPoolExecutor executor = null;
+    private ThreadPoolExecutor taskExecutor = null;
+    private ReentrantLock uiLock = new ReentrantLock(true);
+    private HashMap<String, ReentrantLock> tokenLockMap = new HashMap<String, ReentrantLock>();
+    private HashMap<Object, JobBatch> openBatchMap = new HashMap<Object, JobBatch>();
+    
+    public SignScheduler(){
+        executor = createExecutor(maxRunningJobs, maxQueuedJobs, "Sign job ");
+        taskExecutor = createExecutor(maxRunningTasks, maxQueuedTasks, "Sign task ");
+    }
+    
+    private static ThreadPoolExecutor createExecutor(int maxRunning, int maxQueued, final String threadName){
+        ThreadPoolExecutor ret = new ThreadPoolExecutor(Math.max(1, maxRunning), Math.max(1, maxRunning), 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, maxQueued), true), new ThreadFactory() {
+            private int threadCount = 0;
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName + (++threadCount));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        ret.allowCoreThreadTimeOut(true);
+        return ret;
+    }
+    
+    public Future<List<Data>> submit(List<Data> dataToSignList, String[] dllList, SignJobListener listener) throws Exception{
+        return submit(dataToSignList, dllList, listener, false, null);
+    }
+    
+    public Future<List<Data>> submit(List<Data> dataToSignList, String[] dllList, final SignJobListener listener, boolean streamResults) throws Exception{
+        return submit(dataToSignList, dllList, listener, streamResults, null);
+    }
+    
+    //Only the jobs with the same not null owner can be signed together
+    public Future<List<Data>> submit(List<Data> dataToSignList, String[] dllList, final SignJobListener listener, boolean streamResults, Object owner) throws Exception{
+        //The data are checked here, so an invalid request fails alone instead of failing all the requests joined with it
+        if(dataToSignList.size() == 0)
+            throw new Exception("No data to sign");
+        for(Data dataToSign : dataToSignList)
+            SignEngine.checkDataToSign(dataToSign);
+        
+        final CoalescedJob job = new CoalescedJob(new ArrayList<Data>(dataToSignList), streamResults ? listener : null);
+        synchronized (this) {
+            JobBatch openBatch = owner != null ? openBatchMap.get(owner) : null;
+            if(coalesceRequests && openBatch != null && !openBatch.closed && Arrays.equals(openBatch.dllList, dllList) && openBatch.jobList.size() < Math.max(1, maxQueuedJobs)){
+                //The joined job does not use the executor: its task is run by the job it joined, when the batch ends
+                job.joinedTask = new FutureTask<List<Data>>(getJobCompletion(job, openBatch, listener));
+                openBatch.jobList.add(job);
+                return job.joinedTask;
+            }
+        }
+        
+        final JobBatch batch = new JobBatch(owner, dllList);
+        batch.jobList.add(job);
+        Future<List<Data>> ret = null;
+        try{
+            ret = executor.submit(new Callable<List<Data>>() {
+                @Override
+                public List<Data> call() throws Exception {
+                    runBatch(batch);
+                    return getJobCompletion(job, batch, listener).call();
+                }
+            });
+        }catch(RejectedExecutionException ex){
+            throw new Exception("Too many sign requests waiting: please retry later");
+        }
+        synchronized (this) {
+            if(coalesceRequests && owner != null && !batch.closed)
+                openBatchMap.put(owner, batch);
+        }
+        return ret;
+    }
+    
+    //Run a job that needs neither the dialogs nor a token, like the phases of an external PDF signature, on the task executor: it does not wait for the sign jobs
+    public <T> Future<T> submitTask(Callable<T> task) throws Exception{
+        try{
+            return taskExecutor.submit(task);
+        }catch(RejectedExecutionException ex){
+            throw new Exception("Too many tasks waiting: please retry later");
+        }
+    }
+    
+    public List<Data> sign(List<Data> dataToSignList, String[] dllList) throws Exception{
+        Future<List<Data>> job = submit(dataToSignList, dllList, null);
+        try{
+            return job.get();
+        }catch(ExecutionException ex){
+            if(ex.getCause() instanceof Exception)
+                throw (Exception) ex.getCause();
+            throw ex;
+        }
+    }
+    
+    private Callable<List<Data>> getJobCompletion(final CoalescedJob job, final JobBatch batch, final SignJobListener listener){
+        return new Callable<List<Data>>() {
+            @Override
+            public List<Data> call() throws Exception {
+                Exception error = batch.error != null ? batch.error : job.error;
+                if(error != null){
+                    if(listener != null)
+                        listener.onSignFailed(error);
+                    throw error;
+                }
+                if(listener != null)
+                    listener.onSignCompleted(job.dataSignedList);
+                return job.dataSignedList;
+            }
+        };
+    }
+    
+    private void runBatch(JobBatch batch){
+        SignEngine.SpeculativePreparation speculation = null;
+        try{
+            CertificateData certificateData = null;
+            String pin = null;
+            uiLock.lock();
+            try{
+                certificateData = selectCertificate(batch.dllList);
+                if(certificateData == null)
+                    throw new Exception("Process aborted");
+                //The first documents are prepared while the user types the PIN: the requests joining later are appended, so they do not invalidate it
+                speculation = prepareSpeculatively(getBatchDataToSignList(batch), certificateData);
+                pin = askForPIN();
+                if(pin == null)
+                    throw new Exception("Process aborted");
+            }finally{
+                uiLock.unlock();
+            }
+            
+            //Only a batch with an owner can be joined: the related requests still being sent have a short time to arrive
+            if(coalesceRequests && coalescingWindow > 0 && batch.owner != null)
+                Thread.sleep(coalescingWindow);
+            List<CoalescedJob> jobList = closeBatch(batch);
+            
+            ReentrantLock tokenLock = getTokenLock(certificateData);
+            tokenLock.lock();
+            try{
+                signJobs(jobList, certificateData, pin, speculation);
+            }finally{
+                tokenLock.unlock();
+            }
+        }catch(Exception ex){
+            batch.error = ex;
+        }finally{
+            if(speculation != null)
+                speculation.cancel();
+            for(CoalescedJob job : closeBatch(batch))
+                if(job.joinedTask != null)
+                    job.joinedTask.run();
+        }
+    }
+    
+    private synchronized List<CoalescedJob> closeBatch(JobBatch batch){
+        batch.closed = true;
+        if(batch.owner != null && openBatchMap.get(batch.owner) == batch)
+            openBatchMap.remove(batch.owner);
+        return new ArrayList<CoalescedJob>(batch.jobList);
+    }
+    
+    private synchronized List<Data> getBatchDataToSignList(JobBatch batch){
+        ArrayList<Data> batchDataToSignList = new ArrayList<Data>();
+        for(CoalescedJob job : batch.jobList)
+            batchDataToSignList.addAll(job.dataToSignList);
+        return batchDataToSignList;
+    }
+    
+    private void signJobs(final List<CoalescedJob> jobList, CertificateData certificateData, String pin, SignEngine.SpeculativePreparation speculation) throws Exception{
+        ArrayList<Data> batchDataToSignList = new ArrayList<Data>();
+        final int[] jobStartList = new int[jobList.size()];
+        for(int i=0;i<jobList.size();i++){
+            jobStartList[i] = batchDataToSignList.size();
+            batchDataToSignList.addAll(jobList.get(i).dataToSignList);
+        }
+        
+        //The signed data are routed back to their job: a failure delivering the results of a job does not stop the others
+        signData(batchDataToSignList, certificateData, pin, new SignEngine.DataSignedListener() {
+            @Override
+            public void onDataSigned(int index, Data dataSigned) throws Exception {
+                int jobIndex = jobList.size() - 1;
+                while(jobStartList[jobIndex] > index)
+                    jobIndex--;
+                CoalescedJob job = jobList.get(jobIndex);
+                if(job.error != null)
+                    return;
+                if(job.dataSignedListener == null){
+                    job.dataSignedList.add(dataSigned);
+                    return;
+                }
+                try{
+                    job.dataSignedListener.onDataSigned(index - jobStartList[jobIndex], dataSigned);
+                }catch(Exception ex){
+                    job.error = ex;
+                }
+            }
+        }, speculation);
+    }
+    
+    //The steps that need the user or the token are overridden in the tests
+    protected CertificateData selectCertificate(String[] dllList) throws Exception{
+        return SignFactory.getUniqueUI().showCertificateDialog(dllList);
+    }
+    
+    protected SignEngine.SpeculativePreparation prepareSpeculatively(List<Data> dataToSignList, CertificateData certificateData) throws Exception{
+        return SignFactory.getUniqueEngine().prepareSpeculatively(dataToSignList, certificateData);
+    }
+    
+    protected String askForPIN(){
+        return SignUI.askForPIN();
+    }
+    
+    protected void signData(List<Data> dataToSignList, CertificateData certificateData, String pin, SignEngine.DataSignedListener listener, SignEngine.SpeculativePreparation speculation) throws Exception{
+        SignFactory.getUniqueEngine().sign(dataToSignList, certificateData, pin, listener, speculation);
+    }
+    
+    private synchronized ReentrantLock getTokenLock(CertificateData certificateData){
+        String tokenKey = certificateData.tokenSerial != null && !certificateData.tokenSerial.isEmpty() ? certificateData.tokenSerial : certificateData.dll + "|" + certificateData.slot;
+        ReentrantLock tokenLock = tokenLockMap.get(tokenKey);
+        if(tokenLock == null){
+            tokenLock = new ReentrantLock(true);
+            tokenLockMap.put(tokenKey, tokenLock);
+        }
+        return tokenLock;
+    }
+    
+    public int getQueuedJobs(){
+        return executor.getQueue().size();
+    }
+    
+    public void terminate(){
+        executor.shutdownNow();
+        taskExecutor.shutdownNow();
+    }
+}
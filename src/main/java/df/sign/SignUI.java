@@ -26,6 +26,10 @@ import java.awt.TrayIcon;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -45,6 +49,7 @@ import javax.swing.event.AncestorEvent;
 import javax.swing.event.AncestorListener;
 
 import df.sign.datastructure.Data;
+import df.sign.datastructure.SignConfig;
 import df.sign.pkcs11.CertificateData;
 import df.sign.utils.IOUtils;
 import df.sign.utils.X509Utils;
@@ -55,12 +60,19 @@ public class SignUI {
     
     public boolean readAllCertificates = false;
     public String dnRestrictedSignatureName = "";
+    //The libraries of the dialog shown: null to use the ones of the engine
+    private String[] dialogDllList = null;
     
     public SignUI(SignEngine signEngine){
         this.signEngine = signEngine;
     }
 
     public CertificateData showCertificateDialog(){
+        return showCertificateDialog(null);
+    }
+    
+    public CertificateData showCertificateDialog(String[] dllList){
+        dialogDllList = dllList != null && dllList.length != 0 ? dllList : null;
         
         final Choice certificateComboBox = new Choice();
         final JOptionPane optionPane = new JOptionPane();
@@ -88,7 +100,7 @@ public class SignUI {
         JButton refreshCertificateButton = new JButton();
         refreshCertificateButton.addActionListener(new ActionListener(){
             public void actionPerformed(ActionEvent e) {
-                updateComboBox(certificateComboBox);
+                updateComboBox(certificateComboBox, true);
             }
         });
         refreshCertificateButton.setIcon(new javax.swing.ImageIcon(getClass().getResource("refresh.png")));  
@@ -100,7 +112,7 @@ public class SignUI {
         panel.add(certificateComboBox);
         panel.add(refreshCertificateButton);
         
-        updateComboBox(certificateComboBox);
+        updateComboBox(certificateComboBox, false);
         
         optionPane.setMessage(panel);
         optionPane.setOptions(new Object[] { signButton, terminateButton});
@@ -121,14 +133,14 @@ public class SignUI {
         return null;
     }
     
-    private void updateComboBox(Choice certificateComboBox){
+    private void updateComboBox(Choice certificateComboBox, boolean forceReload){
         certificateComboBox.removeAll();
         certificateComboBox.addItem("Loading Certificates...");
         certificateComboBox.select(0);
        
         ArrayList<CertificateData> certList = new ArrayList<CertificateData>();
         try {
-            certList = signEngine.loadSmartCardCertificateList(readAllCertificates).certificateList;
+            certList = signEngine.loadSmartCardCertificateList(readAllCertificates, forceReload, dialogDllList).certificateList;
         } catch (Exception e) {
             e.printStackTrace();
             SignUtils.playBeeps(1);
@@ -297,7 +309,7 @@ public class SignUI {
     }
     
     private void showHelp(){
-        String[] dllList = signEngine.dllList;
+        String[] dllList = dialogDllList != null ? dialogDllList : signEngine.dllList;
         
         final JOptionPane optionPane = new JOptionPane();
         
@@ -418,29 +430,48 @@ public class SignUI {
         File[] choosedFileList = jfc.getSelectedFiles();
         for(File file:choosedFileList){
             String id = file.getAbsolutePath();
-            byte[] fileContent = IOUtils.readFile(file);
-            ret.add(new Data(id, fileContent));
+            ret.add(new Data(id, file, new SignConfig()));
         }
         return ret;
     }
     
     public static void showFileSave(List<Data> dataSignedList) throws Exception{
         for(Data dataSigned : dataSignedList){
-            JFileChooser jfc = new JFileChooser();
-            jfc.setMultiSelectionEnabled(false);
-            jfc.setSelectedFile(new File(dataSigned.id+(dataSigned.id.toLowerCase().endsWith(".pdf") || dataSigned.id.toLowerCase().endsWith(".p7m")?"":(dataSigned.config.saveAsPDF?".pdf":".p7m"))));
-            jfc.setDialogTitle("Save file");
-            SignUtils.playBeeps(1);
-            if(jfc.showSaveDialog(null) != JFileChooser.APPROVE_OPTION)
-                continue;
-            String fileName = jfc.getSelectedFile().getAbsolutePath();
-            if(new File(fileName).exists()){
+            try{
+                JFileChooser jfc = new JFileChooser();
+                jfc.setMultiSelectionEnabled(false);
+                jfc.setSelectedFile(new File(dataSigned.id+(dataSigned.id.toLowerCase().endsWith(".pdf") || dataSigned.id.toLowerCase().endsWith(".p7m")?"":(dataSigned.config.saveAsPDF?".pdf":".p7m"))));
+                jfc.setDialogTitle("Save file");
                 SignUtils.playBeeps(1);
-                if(JOptionPane.showConfirmDialog(null, "Overwrite the file " + fileName + " ?", "WARNING", JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION)
+                if(jfc.showSaveDialog(null) != JFileChooser.APPROVE_OPTION)
+                    continue;
+                String fileName = jfc.getSelectedFile().getAbsolutePath();
+                if(new File(fileName).exists()){
+                    SignUtils.playBeeps(1);
+                    if(JOptionPane.showConfirmDialog(null, "Overwrite the file " + fileName + " ?", "WARNING", JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION)
+                        continue;
+                }
+                
+                if(dataSigned.data != null){
+                    IOUtils.writeFile(dataSigned.data, fileName, false);
                     continue;
+                }
+                InputStream input = new FileInputStream(dataSigned.file);
+                try{
+                    OutputStream output = new FileOutputStream(fileName);
+                    try{
+                        IOUtils.copyInputStreamToOutputStream(input, output);
+                    }finally{
+                        output.close();
+                    }
+                }finally{
+                    input.close();
+                }
+            }finally{
+                //The big signed PDFs are returned in temporary files
+                if(dataSigned.file != null)
+                    dataSigned.file.delete();
             }
-            
-            IOUtils.writeFile(dataSigned.data, fileName, false);
         }
     }
     
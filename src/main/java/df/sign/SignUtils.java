@@ -18,14 +18,18 @@
 package df.sign;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.net.InetAddress;
 import java.security.MessageDigest;
 import java.security.Security;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Properties;
 
 import javax.smartcardio.CardTerminal;
 import javax.smartcardio.TerminalFactory;
@@ -44,12 +48,23 @@ import df.sign.utils.X509Utils;
 public class SignUtils {
     
     public static final String[] standardDllList = new String[]{"incryptoki2.dll", "bit4ipki.dll", "bit4opki.dll", "bit4xpki.dll", "OCSCryptoki.dll", "asepkcs.dll", "SI_PKCS11.dll", "cmP11.dll", "cmP11_M4.dll", "IpmPki32.dll", "IPMpkiLC.dll", "IpmPkiLU.dll", "bit4cpki.dll", "bit4p11.dll", "asepkcs.dll", "PKCS11.dll", "eTPKCS11.dll", "SSC_PKCS11.dll", "inp11lib.dll", "opensc-pkcs11.dll", "libbit4opki.so", "libbit4spki.so", "libbit4p11.so", "libbit4ipki.so", "opensc-pkcs11.so", "libeTPkcs11.so", "libopensc.dylib", "libbit4xpki.dylib", "libbit4ipki.dylib", "libbit4opki.dylib", "libASEP11.dylib", "libeTPkcs11.dylib"};    
+    //Card info: name, libraries separated by %, ATR, library download URL and an optional ATR mask
     private static ArrayList<String[]> mapCardInfoList = new ArrayList<String[]>();
+    private static HashMap<String, String[]> mapCardInfoByATR = new HashMap<String, String[]>();
+    private static ArrayList<String[]> mapCardInfoWithMaskList = new ArrayList<String[]>();
     public static final String logFilePath = System.getProperty("java.io.tmpdir")+"websocket_smartcard_signer.log";
+    public static final String atrLibraryFilePath = System.getProperty("user.home")+File.separator+".websocket_smartcard_signer_atr.properties";
+    private static Properties learnedATRLibraryMap = null;
     
     static {
         mapCardInfoList.add(new String[]{"Carta Raffaello 111", "bit4ipki.dll%incryptoki2.dll%libbit4ipki.so%libbit4ipki.dylib", "3BFF1800FF8131FE55006B02090200011101434E531131808E", "http://www.cartaraffaello.it/AreaDownload/tabid/80/language/it-IT/Default.aspx"});
         mapCardInfoList.add(new String[]{"Carta Raffaello 611", "bit4opki.dll%libbit4opki.so%libbit4opki.dylib", "3BFF1800008131FE45006B04050100012101434E5310318059", "http://www.cartaraffaello.it/AreaDownload/tabid/80/language/it-IT/Default.aspx"});
+        
+        for(String[] mapCardInfo:mapCardInfoList)
+            if(mapCardInfo.length > 4 && mapCardInfo[4] != null)
+                mapCardInfoWithMaskList.add(mapCardInfo);
+            else
+                mapCardInfoByATR.put(mapCardInfo[2].toUpperCase(), mapCardInfo);
     }
     
     public static void initLog() throws Exception {
@@ -80,7 +95,41 @@ public class SignUtils {
         return new ArrayList<CertificateData>();
     }
     
+    //Buffer reused by each thread to digest the streams
+    private static final ThreadLocal<byte[]> hashBuffer = new ThreadLocal<byte[]>(){
+        @Override
+        protected byte[] initialValue(){
+            return new byte[64 * 1024];
+        }
+    };
+    
     public static byte[] calculateHASH(String digestOID, byte[] data) throws Exception{
+        MessageDigest md = getMessageDigest(digestOID);
+        try{
+            md.update(data);
+            return md.digest();
+        }catch(Exception e){
+            throw new Exception("Error on the generation for the Hash "+md.getAlgorithm()+":\n"+e.getMessage());
+        }
+    }
+    
+    //The stream is consumed and closed: its content is never kept in memory as a whole
+    public static byte[] calculateHASH(String digestOID, InputStream data) throws Exception{
+        MessageDigest md = getMessageDigest(digestOID);
+        byte[] buffer = hashBuffer.get();
+        try{
+            int read = 0;
+            while((read = data.read(buffer)) != -1)
+                md.update(buffer, 0, read);
+            return md.digest();
+        }catch(Exception e){
+            throw new Exception("Error on the generation for the Hash "+md.getAlgorithm()+":\n"+e.getMessage());
+        }finally{
+            data.close();
+        }
+    }
+    
+    private static MessageDigest getMessageDigest(String digestOID) throws Exception{
         String digestName = "";
         
         try{
@@ -101,12 +150,7 @@ public class SignUtils {
             if(digestName.equals(""))
                 throw new Exception("Unsupported digestOID");
             
-            MessageDigest md = MessageDigest.getInstance(digestName, "BC");
-            md.update(data);
-            
-            byte[] hash = md.digest();
-
-            return hash;
+            return MessageDigest.getInstance(digestName, "BC");
         }catch(Exception e){
             throw new Exception("Error on the generation for the Hash "+digestName+":\n"+e.getMessage());
         }
@@ -197,12 +241,77 @@ public class SignUtils {
     }
     
     public static String[] getCardInfo(String atr){
-        for(String[] mapCardInfo:mapCardInfoList)
-            if(atr.equals(mapCardInfo[2]))
+        String[] ret = mapCardInfoByATR.get(atr.toUpperCase());
+        if(ret != null)
+            return ret;
+        for(String[] mapCardInfo:mapCardInfoWithMaskList)
+            if(isATRMatching(atr, mapCardInfo[2], mapCardInfo[4]))
                 return mapCardInfo;
         return null;
     }
     
+    private static boolean isATRMatching(String atr, String atrPattern, String atrMask){
+        byte[] atrBytes = StringUtils.toByteArray(atr);
+        byte[] patternBytes = StringUtils.toByteArray(atrPattern);
+        byte[] maskBytes = StringUtils.toByteArray(atrMask);
+        if(atrBytes.length != patternBytes.length || atrBytes.length != maskBytes.length)
+            return false;
+        for(int i=0;i<atrBytes.length;i++)
+            if((atrBytes[i] & maskBytes[i]) != (patternBytes[i] & maskBytes[i]))
+                return false;
+        return true;
+    }
+    
+    public static ArrayList<String> getLibrariesForATR(String atr){
+        ArrayList<String> ret = new ArrayList<String>();
+        String learnedLibraries = getLearnedATRLibraryMap().getProperty(atr.toUpperCase());
+        if(learnedLibraries != null)
+            for(String dll:learnedLibraries.split("%"))
+                if(!dll.isEmpty() && !ret.contains(dll))
+                    ret.add(dll);
+        String[] cardInfo = getCardInfo(atr);
+        if(cardInfo != null)
+            for(String dll:cardInfo[1].split("%"))
+                if(!ret.contains(dll))
+                    ret.add(dll);
+        return ret;
+    }
+    
+    public static synchronized void learnATRLibraries(String atr, List<String> dllList){
+        if(dllList.isEmpty())
+            return;
+        String libraries = "";
+        for(String dll:dllList)
+            libraries += (libraries.isEmpty()?"":"%") + dll;
+        Properties learnedMap = getLearnedATRLibraryMap();
+        if(libraries.equals(learnedMap.getProperty(atr.toUpperCase())))
+            return;
+        learnedMap.setProperty(atr.toUpperCase(), libraries);
+        try{
+            FileOutputStream fos = new FileOutputStream(atrLibraryFilePath);
+            learnedMap.store(fos, "Websocket Smartcard Signer: PKCS11 libraries identified for each smart card ATR");
+            fos.close();
+        }catch(Exception ex){
+            System.err.println("Impossible to save the ATR libraries in " + atrLibraryFilePath + ": " + ex.getMessage());
+        }
+    }
+    
+    private static synchronized Properties getLearnedATRLibraryMap(){
+        if(learnedATRLibraryMap != null)
+            return learnedATRLibraryMap;
+        learnedATRLibraryMap = new Properties();
+        if(new File(atrLibraryFilePath).exists()){
+            try{
+                FileInputStream fis = new FileInputStream(atrLibraryFilePath);
+                learnedATRLibraryMap.load(fis);
+                fis.close();
+            }catch(Exception ex){
+                System.err.println("Impossible to load the ATR libraries from " + atrLibraryFilePath + ": " + ex.getMessage());
+            }
+        }
+        return learnedATRLibraryMap;
+    }
+    
     public static String getCardTypeFromDLL(String dll){
         for(String[] mapCardInfo:mapCardInfoList)
             if(mapCardInfo[1].contains(dll))
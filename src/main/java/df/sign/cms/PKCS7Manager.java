@@ -18,8 +18,12 @@
 package df.sign.cms;
 
 import java.io.ByteArrayOutputStream;
+import java.security.PublicKey;
 import java.security.Security;
 import java.security.cert.X509Certificate;
+import java.security.interfaces.DSAPublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
 import java.util.Collection;
 import java.util.Date;
 
@@ -30,6 +34,7 @@ import org.bouncycastle.cms.SignerInformation;
 import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
+import df.sign.SignUtils;
 import df.sign.utils.X509Utils;
 
 public class PKCS7Manager {
@@ -46,6 +51,30 @@ public class PKCS7Manager {
         return buildPKCS7(digestOID, null, cert, signature, hash, dateTime);
     }
 
+    public static int estimatePDFPKCS7Size(String digestOID, X509Certificate cert, boolean withSignedAttributes, Date dateTime) throws Exception {
+        // The signature and the signed attributes have a fixed length for a given certificate and key, so a PKCS7 built with placeholder values has the same size of the real one
+        int signatureLength = getMaxSignatureLength(cert.getPublicKey());
+        byte[] hash = null;
+        if (withSignedAttributes)
+            hash = new byte[SignUtils.calculateHASH(digestOID, new byte[0]).length];
+        return buildPDFPKCS7(digestOID, cert, new byte[signatureLength], hash, dateTime).length;
+    }
+
+    // The longest signature the key can produce: the DSA and ECDSA signatures are DER sequences of two integers of the size of the group order, each with a possible leading zero
+    private static int getMaxSignatureLength(PublicKey publicKey) {
+        if (publicKey instanceof RSAPublicKey)
+            return (((RSAPublicKey) publicKey).getModulus().bitLength() + 7) / 8;
+        int orderLength = 0;
+        if (publicKey instanceof ECPublicKey)
+            orderLength = (((ECPublicKey) publicKey).getParams().getOrder().bitLength() + 7) / 8;
+        if (publicKey instanceof DSAPublicKey && ((DSAPublicKey) publicKey).getParams() != null)
+            orderLength = (((DSAPublicKey) publicKey).getParams().getQ().bitLength() + 7) / 8;
+        if (orderLength > 0)
+            return 2 * (orderLength + 1 + 2) + 3;
+        // Unknown algorithm: no signature of the known ones is longer than the encoded public key
+        return Math.max(512, publicKey.getEncoded().length);
+    }
+
     @SuppressWarnings("unchecked")
     public static byte[] buildPKCS7(String digestOID, byte[] data, X509Certificate cert, byte[] signature, byte[] hash, Date dateTime) throws Exception {
         if (Security.getProvider("BC") == null)
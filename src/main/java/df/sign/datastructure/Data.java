@@ -17,10 +17,15 @@
  */
 package df.sign.datastructure;
 
+import java.io.File;
+
 public class Data {
     public String id = null;
     public byte[] data = null;
+    //When data is null the content is read from this file only when needed. The big signed PDFs are returned in a temporary file too
+    public File file = null;
     public SignConfig config = null;
     public Data(String id, byte[] data){ this.id = id; this.data = data; this.config = new SignConfig();}
     public Data(String id, byte[] data, SignConfig config){ this.id = id; this.data = data; this.config = config; }
+    public Data(String id, File file, SignConfig config){ this.id = id; this.file = file; this.config = config; }
 }
\ No newline at end of file
@@ -0,0 +1,31 @@
+/*
+    Websocket Smartcard Signer
+    Copyright (C) 2017  Damiano Falcioni (damiano.falcioni@gmail.com)
+    
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+    
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+    
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package df.sign.datastructure;
+
+import df.sign.pdf.PDFManager;
+
+public class PreparedData {
+    public Data data = null;
+    public byte[] unsignedContent = null;
+    public PDFManager pdfManager = null;
+    public byte[] hash = null;
+    public byte[] hashToSign = null;
+    public byte[] signature = null;
+    public int contentsSize = -1;
+    public PreparedData(Data data){ this.data = data; }
+}
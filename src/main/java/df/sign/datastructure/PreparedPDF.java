@@ -0,0 +1,39 @@
+/*
+    Websocket Smartcard Signer
+    Copyright (C) 2017  Damiano Falcioni (damiano.falcioni@gmail.com)
+    
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+    
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+    
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package df.sign.datastructure;
+
+import java.io.File;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+public class PreparedPDF {
+    public String handle = null;
+    public Data data = null;
+    //The PDF with the signature field reserved and an empty /Contents
+    public File preparedFile = null;
+    public String signatureName = null;
+    public long[] byteRange = null;
+    public byte[] hash = null;
+    //Digest of the signed attributes built with signingTime: a raw signature of its DigestInfo is accepted by the finalization
+    public byte[] signedAttributesHash = null;
+    public Date signingTime = null;
+    public String digestOID = null;
+    public X509Certificate cert = null;
+    public long preparationTime = 0;
+    public PreparedPDF(String handle, Data data){ this.handle = handle; this.data = data; }
+}
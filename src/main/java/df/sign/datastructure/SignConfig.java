@@ -23,4 +23,22 @@ public class SignConfig {
     public int pageNumToSign = -1;
     public String signPosition = "left";
     public boolean saveAsPDF = true;
+    //The data is a precomputed digest: the result is a detached CMS, or only the signature of the digest when rawSignature is set
+    public boolean hashOnly = false;
+    public boolean rawSignature = false;
+    //Byte range of the PDF the digest has been calculated on, returned with the result
+    public long[] byteRange = null;
+    
+    public SignConfig copy(){
+        SignConfig ret = new SignConfig();
+        ret.signPdfAsP7m = signPdfAsP7m;
+        ret.visibleSignature = visibleSignature;
+        ret.pageNumToSign = pageNumToSign;
+        ret.signPosition = signPosition;
+        ret.saveAsPDF = saveAsPDF;
+        ret.hashOnly = hashOnly;
+        ret.rawSignature = rawSignature;
+        ret.byteRange = byteRange != null ? byteRange.clone() : null;
+        return ret;
+    }
 }
\ No newline at end of file
@@ -18,24 +18,35 @@
 package df.sign.pdf;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.security.Security;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.List;
 
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
 
 import com.itextpdf.text.Rectangle;
-import com.itextpdf.text.pdf.AcroFields;
-import com.itextpdf.text.pdf.AcroFields.FieldPosition;
+import com.itextpdf.text.io.RandomAccessSourceFactory;
 
+import df.sign.SignUtils;
 import df.sign.cms.PKCS7Manager;
 import df.sign.utils.IOUtils;
 import df.sign.utils.StringUtils;
 import df.sign.utils.X509Utils;
 
+import com.itextpdf.text.pdf.PdfArray;
 import com.itextpdf.text.pdf.PdfDate;
 import com.itextpdf.text.pdf.PdfDictionary;
 import com.itextpdf.text.pdf.PdfEncryptor;
@@ -46,18 +57,29 @@ import com.itextpdf.text.pdf.PdfSignatureAppearance;
 import com.itextpdf.text.pdf.PdfStamper;
 import com.itextpdf.text.pdf.PdfString;
 import com.itextpdf.text.pdf.PdfWriter;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
 
 public class PDFManager {
 
+    public static enum SelfCheckLevel {
+        NONE,
+        STRUCTURAL,
+        FULL
+    };
+
     private PdfReader reader;
     private PdfSignatureAppearance sap;
     private ByteArrayOutputStream bout;
+    //In file mode the source is read in partial mode and the incremental update is written to signedFile, where the /Contents is then patched in place
+    private File signedFile = null;
     private byte[] dataToSign;
     private int csize = 4000;
     private X509Certificate x509Certificate;
     private int numPages;
     private Date dateTime;
     private int contentsSize = csize;
+    private HashMap<Integer, SignatureAreaIndex> signatureAreaIndexMap = null;
+    public static int contentsSizeMargin = 64;
 
     public PDFManager(byte[] pdfData, X509Certificate cert) throws Exception {
         reader = new PdfReader(pdfData);
@@ -68,11 +90,27 @@ public class PDFManager {
         sap = stp.getSignatureAppearance();
     }
 
-    public void setVisibleSignature(int numPage) {
+    public PDFManager(File pdfFile, X509Certificate cert) throws Exception {
+        reader = new PdfReader(pdfFile.getAbsolutePath(), null, true);
+        numPages = reader.getNumberOfPages();
+        x509Certificate = cert;
+        if (cert == null)
+            return;
+        try {
+            signedFile = File.createTempFile("websocket_smartcard_signer_", ".pdf");
+            PdfStamper stp = PdfStamper.createSignature(reader, null, '\0', signedFile, true);
+            sap = stp.getSignatureAppearance();
+        } catch (Exception ex) {
+            discard();
+            throw ex;
+        }
+    }
+
+    public void setVisibleSignature(int numPage) throws Exception {
         setVisibleSignature(numPage, null);
     }
 
-    public void setVisibleSignature(int numPage, String signPosition) {
+    public void setVisibleSignature(int numPage, String signPosition) throws Exception {
         if (numPage <= 0)
             numPage = numPages;
         Rectangle posArea = null;
@@ -82,7 +120,7 @@ public class PDFManager {
             if (signPosition.toLowerCase().equals("right"))
                 posArea = new Rectangle(440, 160, 500, 200);
         } else
-            posArea = getFreeArea(numPage, reader);
+            posArea = getFreeArea(numPage);
 
         sap.setVisibleSignature(posArea, numPage, null);
     }
@@ -126,8 +164,6 @@ public class PDFManager {
         HashMap<PdfName, Integer> exc = new HashMap<PdfName, Integer>();
         exc.put(PdfName.CONTENTS, new Integer(csize * 2 + 2));
         sap.preClose(exc);
-
-        dataToSign = IOUtils.toByteArray(sap.getRangeStream());
     }
 
     public static boolean isAPdf(byte[] pdfData) {
@@ -138,11 +174,57 @@ public class PDFManager {
         return false;
     }
 
-    public byte[] getDataToHashAndSign() {
+    public static boolean isAPdf(File pdfFile) throws Exception {
+        byte[] header = new byte[4];
+        RandomAccessFile raf = new RandomAccessFile(pdfFile, "r");
+        try {
+            if (raf.read(header) != header.length)
+                return false;
+        } finally {
+            raf.close();
+        }
+        return isAPdf(header);
+    }
+
+    public boolean isFileBacked() {
+        return signedFile != null;
+    }
+
+    //The range is read from the stamper output only when needed: to calculate its hash calculateRangeHash is enough
+    public byte[] getDataToHashAndSign() throws Exception {
+        if (dataToSign == null)
+            dataToSign = IOUtils.toByteArray(sap.getRangeStream());
         return dataToSign;
     }
 
+    public byte[] calculateRangeHash(String digestOID) throws Exception {
+        if (dataToSign != null)
+            return SignUtils.calculateHASH(digestOID, dataToSign);
+        return SignUtils.calculateHASH(digestOID, sap.getRangeStream());
+    }
+
     public byte[] buildSignedPDF(String digestOID, byte[] signature, byte[] hash) throws Exception {
+        closeWithSignature(digestOID, signature, hash);
+        if (signedFile != null)
+            return readAndDiscard();
+        return bout.toByteArray();
+    }
+
+    //The returned file is owned by the caller, that must delete it when no more needed
+    public File buildSignedPDFFile(String digestOID, byte[] signature, byte[] hash) throws Exception {
+        if (signedFile == null)
+            throw new Exception("The PDF has not been opened from a file");
+        try {
+            closeWithSignature(digestOID, signature, hash);
+        } catch (Exception ex) {
+            discard();
+            throw ex;
+        }
+        reader.close();
+        return signedFile;
+    }
+
+    private void closeWithSignature(String digestOID, byte[] signature, byte[] hash) throws Exception {
         byte[] hashTmp = null;
         if (dateTime != null)
             hashTmp = hash;
@@ -156,9 +238,122 @@ public class PDFManager {
 
         dic.put(PdfName.CONTENTS, contents);
         sap.close(dic);
+    }
+
+    public void close() {
+        reader.close();
+    }
 
+    //Release the source and delete the partial output when the signature can not be completed
+    public void discard() {
+        reader.close();
+        if (signedFile != null)
+            signedFile.delete();
+    }
+
+    public byte[] closeWithEmptySignature() throws Exception {
+        //The reserved /Contents is filled with zeros: the signature is inserted later by insertSignature
+        PdfDictionary dic = new PdfDictionary();
+        dic.put(PdfName.CONTENTS, new PdfString(new byte[csize]).setHexWriting(true));
+        sap.close(dic);
+        if (signedFile != null)
+            return readAndDiscard();
         return bout.toByteArray();
     }
+    
+    //The output is returned in memory, so the temporary file is no more needed
+    private byte[] readAndDiscard() throws Exception {
+        try {
+            return IOUtils.readFile(signedFile);
+        } finally {
+            discard();
+        }
+    }
+
+    public String getSignatureFieldName() {
+        return sap.getFieldName();
+    }
+
+    public static long[] getSignatureByteRange(byte[] pdfData, String signatureName) throws Exception {
+        PdfReader pdfReader = new PdfReader(pdfData);
+        try {
+            PdfDictionary signatureDic = pdfReader.getAcroFields().getSignatureDictionary(signatureName);
+            if (signatureDic == null || signatureDic.getAsArray(PdfName.BYTERANGE) == null)
+                throw new Exception("The signature " + signatureName + " has not been found in the PDF");
+            PdfArray byteRange = signatureDic.getAsArray(PdfName.BYTERANGE);
+            long[] ret = new long[byteRange.size()];
+            for (int i = 0; i < byteRange.size(); i++)
+                ret[i] = byteRange.getAsNumber(i).longValue();
+            return ret;
+        } finally {
+            pdfReader.close();
+        }
+    }
+
+    public static byte[] insertSignature(byte[] preparedPdfData, long[] byteRange, byte[] pkcs7) throws Exception {
+        //The placeholder is the hex string between the two signed ranges
+        if (byteRange == null || byteRange.length != 4 || byteRange[2] > preparedPdfData.length || byteRange[1] + 2 > byteRange[2])
+            throw new Exception("Invalid byte range for the prepared PDF");
+        int start = (int) byteRange[1] + 1;
+        int end = (int) byteRange[2] - 1;
+        if (preparedPdfData[start - 1] != '<' || preparedPdfData[end] != '>')
+            throw new Exception("The signature placeholder has not been found in the prepared PDF");
+        byte[] pkcs7Hex = Hex.encode(pkcs7);
+        if (pkcs7Hex.length > end - start)
+            throw new Exception("The signature needs " + pkcs7Hex.length + " bytes but only " + (end - start) + " have been reserved in the prepared PDF");
+
+        byte[] ret = preparedPdfData.clone();
+        System.arraycopy(pkcs7Hex, 0, ret, start, pkcs7Hex.length);
+        return ret;
+    }
+
+    //STRUCTURAL checks only the given signature: its byte range must cover the whole file and its /Contents must be a CMS whose signed attributes contain the expected digest and are signed by cert. FULL also verifies all the signatures and their certificates, including the online revocation check
+    public static void checkSignedPDF(byte[] signedPdfData, File signedPdfFile, String signatureName, byte[] hash, X509Certificate cert, SelfCheckLevel level) throws Exception {
+        if (level == null || level == SelfCheckLevel.NONE)
+            return;
+        if (cert == null)
+            throw new Exception("The certificate is needed to check the signature " + signatureName);
+        long length = signedPdfFile != null ? signedPdfFile.length() : signedPdfData.length;
+        PdfReader pdfReader = signedPdfFile != null ? new PdfReader(signedPdfFile.getAbsolutePath(), null, true) : new PdfReader(new RandomAccessFileOrArray(new RandomAccessSourceFactory().createSource(signedPdfData)), null, true);
+        try {
+            PdfDictionary signatureDic = pdfReader.getAcroFields().getSignatureDictionary(signatureName);
+            if (signatureDic == null)
+                throw new Exception("The signature " + signatureName + " has not been found in the signed PDF");
+            PdfArray byteRange = signatureDic.getAsArray(PdfName.BYTERANGE);
+            if (byteRange == null || byteRange.size() != 4 || byteRange.getAsNumber(0).longValue() != 0 || byteRange.getAsNumber(2).longValue() <= byteRange.getAsNumber(1).longValue() || byteRange.getAsNumber(2).longValue() + byteRange.getAsNumber(3).longValue() != length)
+                throw new Exception("The byte range of the signature " + signatureName + " does not cover the whole signed PDF");
+            PdfString contents = signatureDic.getAsString(PdfName.CONTENTS);
+            if (contents == null)
+                throw new Exception("The signature " + signatureName + " has no /Contents");
+            SignerInformation signerInformation = new CMSSignedData(contents.getOriginalBytes()).getSignerInfos().getSigners().iterator().next();
+            if (signerInformation.getSignedAttributes() == null)
+                throw new Exception("The signature " + signatureName + " has no signed attributes");
+            Attribute messageDigest = signerInformation.getSignedAttributes().get(CMSAttributes.messageDigest);
+            if (messageDigest == null)
+                throw new Exception("The signature " + signatureName + " has no message digest");
+            byte[] signedHash = ASN1OctetString.getInstance(messageDigest.getAttrValues().getObjectAt(0)).getOctets();
+            if (hash != null && !Arrays.equals(signedHash, hash))
+                throw new Exception("The signature " + signatureName + " does not match the digest of the signed PDF");
+
+            //The signer is parsed again with the digest already checked, so the verification costs only one public key operation on the signed attributes
+            if (Security.getProvider("BC") == null)
+                Security.addProvider(new BouncyCastleProvider());
+            SignerInformation digestedSignerInformation = new CMSSignedData(Collections.singletonMap(signerInformation.getDigestAlgorithmID().getAlgorithm(), signedHash), contents.getOriginalBytes()).getSignerInfos().get(signerInformation.getSID());
+            if (digestedSignerInformation == null || !digestedSignerInformation.verify(new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC").build(cert)))
+                throw new Exception("The signature " + signatureName + " is not valid for the certificate " + cert.getSubjectDN());
+        } finally {
+            pdfReader.close();
+        }
+
+        if (level == SelfCheckLevel.FULL) {
+            PDFManager signedPdfManager = signedPdfFile != null ? new PDFManager(signedPdfFile, null) : new PDFManager(signedPdfData, null);
+            try {
+                signedPdfManager.isCorrectlySigned();
+            } finally {
+                signedPdfManager.close();
+            }
+        }
+    }
 
     public byte[] protectPDF(byte[] pdfContent) {
         try {
@@ -179,6 +374,10 @@ public class PDFManager {
         csize = size;
     }
 
+    public void estimateContentsSize(String digestOID) throws Exception {
+        csize = PKCS7Manager.estimatePDFPKCS7Size(digestOID, x509Certificate, dateTime != null, dateTime) + contentsSizeMargin;
+    }
+
     public boolean isSigned() {
         return reader.getAcroFields().getSignatureNames().size() != 0;
     }
@@ -265,53 +464,18 @@ public class PDFManager {
         return false;
     }
 
-    private Rectangle getFreeArea(int pageNum, PdfReader reader) {
-
-        Rectangle pageSize = reader.getPageSize(pageNum);
-        //System.out.println("PAGE "+pageNum+" SIZE: " + pageSize.getLeft() + "-" + pageSize.getBottom() + "-" + pageSize.getRight() + "-" + pageSize.getTop());
-
-        ArrayList<Rectangle> signatureList = new ArrayList<Rectangle>();
-        AcroFields fields = reader.getAcroFields();
-        ArrayList<String> signNameList = fields.getSignatureNames();
-        for (String sigName : signNameList) {
-            List<FieldPosition> fieldPosList = fields.getFieldPositions(sigName);
-            for (FieldPosition fieldPos : fieldPosList)
-                if (fieldPos.page == pageNum)
-                    signatureList.add(fieldPos.position);
-        }
-
-        //for(Rectangle sign: signatureList) System.out.println("PAGE "+pageNum+" SIGNATURE: " + sign.getLeft() + "-" + sign.getBottom() + "-" + sign.getRight() + "-" + sign.getTop());
+    private Rectangle getFreeArea(int pageNum) throws Exception {
+        //The index of the existing signatures is built once for all the pages of the reader
+        if (signatureAreaIndexMap == null)
+            signatureAreaIndexMap = SignatureAreaIndex.build(reader);
+        SignatureAreaIndex areaIndex = signatureAreaIndexMap.get(pageNum);
+        if (areaIndex == null)
+            areaIndex = new SignatureAreaIndex(reader.getPageSize(pageNum));
 
         float llx = 50, lly = 50, urx = 110, ury = 90;
-        Rectangle ret = new Rectangle(llx, lly, urx, ury);
-
-        do {
-            Rectangle overlapped = getOverlapped(ret, signatureList);
-            if (overlapped == null)
-                break;
-
-            ret = new Rectangle(overlapped.getRight(), lly, overlapped.getRight() + (urx - llx), ury);
-            if (!contains(pageSize, ret))
-                ret = new Rectangle(overlapped.getLeft(), overlapped.getTop(), overlapped.getRight(), overlapped.getTop() + (ury - lly));
-        } while (true);
-
+        Rectangle ret = areaIndex.findFreeArea(llx, lly, urx - llx, ury - lly);
+        if (ret == null)
+            throw new Exception("No free area for the signature has been found in the page " + pageNum + ": please specify the signature position");
         return ret;
     }
-
-    private static Rectangle getOverlapped(Rectangle rect, ArrayList<Rectangle> rectList) {
-        for (Rectangle rect2 : rectList)
-            if (overlaps(rect, rect2))
-                return rect2;
-        return null;
-    }
-
-    private static boolean overlaps(Rectangle rect1, Rectangle rect2) {
-        if (rect1.getLeft() >= rect2.getRight() || rect1.getRight() <= rect2.getLeft() || rect1.getTop() <= rect2.getBottom() || rect1.getBottom() >= rect2.getTop())
-            return false;
-        return true;
-    }
-
-    private static boolean contains(Rectangle rect1, Rectangle rect2) {
-        return rect1.getLeft() <= rect2.getLeft() && rect1.getRight() >= rect2.getRight() && rect1.getBottom() <= rect2.getBottom() && rect1.getTop() >= rect2.getTop();
-    }
 }
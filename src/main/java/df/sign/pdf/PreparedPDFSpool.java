@@ -0,0 +1,105 @@
+/*
+    Websocket Smartcard Signer
+    Copyright (C) 2017  Damiano Falcioni (damiano.falcioni@gmail.com)
+    
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+    
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+    
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package df.sign.pdf;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import df.sign.datastructure.Data;
+import df.sign.datastructure.PreparedPDF;
+import df.sign.utils.IOUtils;
+
+/*
+ * Keep the PDFs prepared for an external signature until their signature is provided.
+ * The prepared documents are spooled to temporary files: only the last maxPreparedPDF are kept, and those waiting more than preparedPDFTimeout are discarded.
+ * The files still spooled when the application exits are deleted by a single shutdown hook, instead of registering every file with deleteOnExit.
+ */
+public class PreparedPDFSpool {
+    
+    public static int maxPreparedPDF = 64;
+    public static long preparedPDFTimeout = 30 * 60 * 1000;
+    
+    private LinkedHashMap<String, PreparedPDF> preparedMap = new LinkedHashMap<String, PreparedPDF>();
+    
+    public PreparedPDFSpool(){
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                discardAll();
+            }
+        }));
+    }
+    
+    public synchronized PreparedPDF add(Data data, byte[] preparedContent) throws Exception{
+        discardExpired();
+        while(preparedMap.size() >= Math.max(1, maxPreparedPDF))
+            discard(preparedMap.keySet().iterator().next());
+        
+        PreparedPDF prepared = new PreparedPDF(UUID.randomUUID().toString(), data);
+        prepared.preparedFile = File.createTempFile("websocket_smartcard_signer_", ".prepared");
+        try{
+            IOUtils.writeFile(preparedContent, prepared.preparedFile.getAbsolutePath(), false);
+        }catch(Exception ex){
+            prepared.preparedFile.delete();
+            throw ex;
+        }
+        prepared.preparationTime = System.currentTimeMillis();
+        preparedMap.put(prepared.handle, prepared);
+        return prepared;
+    }
+    
+    public synchronized PreparedPDF get(String handle) throws Exception{
+        discardExpired();
+        PreparedPDF prepared = preparedMap.get(handle);
+        if(prepared == null)
+            throw new Exception("The prepared PDF " + handle + " is unknown or expired: please prepare it again");
+        return prepared;
+    }
+    
+    public byte[] readContent(PreparedPDF prepared) throws Exception{
+        return IOUtils.readFile(prepared.preparedFile);
+    }
+    
+    public synchronized void discard(String handle){
+        PreparedPDF prepared = preparedMap.remove(handle);
+        if(prepared != null && prepared.preparedFile != null)
+            prepared.preparedFile.delete();
+    }
+    
+    public synchronized void discardAll(){
+        for(PreparedPDF prepared : preparedMap.values())
+            prepared.preparedFile.delete();
+        preparedMap.clear();
+    }
+    
+    private void discardExpired(){
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, PreparedPDF>> it = preparedMap.entrySet().iterator();
+        while(it.hasNext()){
+            PreparedPDF prepared = it.next().getValue();
+            //The map is in preparation order, so the first not expired ends the check
+            if(now - prepared.preparationTime < preparedPDFTimeout)
+                break;
+            prepared.preparedFile.delete();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+    Websocket Smartcard Signer
+    Copyright (C) 2017  Damiano Falcioni (damiano.falcioni@gmail.com)
+    
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+    
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+    
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package df.sign.pdf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.AcroFields;
+import com.itextpdf.text.pdf.AcroFields.FieldPosition;
+import com.itextpdf.text.pdf.PdfReader;
+
+/*
+ * Grid index of the areas occupied by the signatures of a page, used to place a new visible signature over none of them.
+ * The candidate positions are the page origin and the right and top sides of the existing signatures, tried bottom to top and left to right: the search ends after all of them have been tried, also when the page is full.
+ */
+public class SignatureAreaIndex {
+    
+    public static float cellWidth = 60;
+    public static float cellHeight = 40;
+    
+    private Rectangle pageSize = null;
+    private int columns = 0;
+    private int rows = 0;
+    private ArrayList<ArrayList<Rectangle>> cellList = null;
+    private ArrayList<Rectangle> areaList = new ArrayList<Rectangle>();
+    
+    public SignatureAreaIndex(Rectangle pageSize){
+        this.pageSize = pageSize;
+        columns = Math.max(1, (int) Math.ceil(pageSize.getWidth() / cellWidth));
+        rows = Math.max(1, (int) Math.ceil(pageSize.getHeight() / cellHeight));
+        cellList = new ArrayList<ArrayList<Rectangle>>(columns * rows);
+        for(int i=0;i<columns * rows;i++)
+            cellList.add(null);
+    }
+    
+    //The signatures of all the pages are read with a single pass over the signature fields
+    public static HashMap<Integer, SignatureAreaIndex> build(PdfReader reader){
+        HashMap<Integer, SignatureAreaIndex> ret = new HashMap<Integer, SignatureAreaIndex>();
+        AcroFields fields = reader.getAcroFields();
+        for(String sigName : fields.getSignatureNames()){
+            List<FieldPosition> fieldPosList = fields.getFieldPositions(sigName);
+            if(fieldPosList == null)
+                continue;
+            for(FieldPosition fieldPos : fieldPosList){
+                SignatureAreaIndex areaIndex = ret.get(fieldPos.page);
+                if(areaIndex == null){
+                    areaIndex = new SignatureAreaIndex(reader.getPageSize(fieldPos.page));
+                    ret.put(fieldPos.page, areaIndex);
+                }
+                areaIndex.add(fieldPos.position);
+            }
+        }
+        return ret;
+    }
+    
+    public void add(Rectangle area){
+        areaList.add(area);
+        for(int row=getRow(area.getBottom());row<=getRow(area.getTop());row++)
+            for(int column=getColumn(area.getLeft());column<=getColumn(area.getRight());column++){
+                ArrayList<Rectangle> cell = cellList.get(row * columns + column);
+                if(cell == null){
+                    cell = new ArrayList<Rectangle>();
+                    cellList.set(row * columns + column, cell);
+                }
+                cell.add(area);
+            }
+    }
+    
+    public boolean isFree(Rectangle area){
+        if(!contains(pageSize, area))
+            return false;
+        for(int row=getRow(area.getBottom());row<=getRow(area.getTop());row++)
+            for(int column=getColumn(area.getLeft());column<=getColumn(area.getRight());column++){
+                ArrayList<Rectangle> cell = cellList.get(row * columns + column);
+                if(cell != null)
+                    for(Rectangle occupied : cell)
+                        if(overlaps(area, occupied))
+                            return false;
+            }
+        return true;
+    }
+    
+    //Return null when no area of the given size is free on the page
+    public Rectangle findFreeArea(float llx, float lly, float width, float height){
+        TreeSet<Float> xSet = new TreeSet<Float>(Collections.singleton(llx));
+        TreeSet<Float> ySet = new TreeSet<Float>(Collections.singleton(lly));
+        for(Rectangle area : areaList){
+            if(area.getRight() >= llx)
+                xSet.add(area.getRight());
+            if(area.getTop() >= lly)
+                ySet.add(area.getTop());
+        }
+        for(float y : ySet){
+            if(y + height > pageSize.getTop())
+                break;
+            for(float x : xSet){
+                if(x + width > pageSize.getRight())
+                    break;
+                Rectangle candidate = new Rectangle(x, y, x + width, y + height);
+                if(isFree(candidate))
+                    return candidate;
+            }
+        }
+        return null;
+    }
+    
+    private int getColumn(float x){
+        return Math.min(columns - 1, Math.max(0, (int) Math.floor((x - pageSize.getLeft()) / cellWidth)));
+    }
+    
+    private int getRow(float y){
+        return Math.min(rows - 1, Math.max(0, (int) Math.floor((y - pageSize.getBottom()) / cellHeight)));
+    }
+    
+    private static boolean overlaps(Rectangle rect1, Rectangle rect2) {
+        if (rect1.getLeft() >= rect2.getRight() || rect1.getRight() <= rect2.getLeft() || rect1.getTop() <= rect2.getBottom() || rect1.getBottom() >= rect2.getTop())
+            return false;
+        return true;
+    }
+    
+    private static boolean contains(Rectangle rect1, Rectangle rect2) {
+        return rect1.getLeft() <= rect2.getLeft() && rect1.getRight() >= rect2.getRight() && rect1.getBottom() <= rect2.getBottom() && rect1.getTop() >= rect2.getTop();
+    }
+}
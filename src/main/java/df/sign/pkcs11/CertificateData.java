@@ -24,6 +24,7 @@ public class CertificateData {
     public String id;
     public String dll;
     public long slot;
+    public String tokenSerial;
     public byte[] certID;
     public byte[] certLABEL;
     public X509Certificate cert;
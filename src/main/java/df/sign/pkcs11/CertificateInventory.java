@@ -0,0 +1,153 @@
+/*
+    Websocket Smartcard Signer
+    Copyright (C) 2017  Damiano Falcioni (damiano.falcioni@gmail.com)
+    
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+    
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+    
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package df.sign.pkcs11;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+
+/*
+ * Cache of the certificates found on the connected tokens.
+ * The cache is trusted only while the PC/SC readers are watched, and it is invalidated at every card insertion or removal.
+ * Every invalidation starts a new generation: a list read before it is not stored, since it could miss the card just inserted.
+ */
+@SuppressWarnings("restriction")
+public class CertificateInventory {
+    
+    public static long watcherPollInterval = 2000;
+    
+    private ArrayList<CertificateData> certificateList = null;
+    private String[] certificateDllList = null;
+    private long generation = 0;
+    private CardEventWatcher cardEventWatcher = null;
+    private ActionListener cardEventListener = null;
+    
+    public void onCardEvent(ActionListener listener){
+        cardEventListener = listener;
+    }
+    
+    public synchronized boolean isValid(String[] dllList){
+        startWatcher();
+        return certificateList != null && Arrays.equals(certificateDllList, dllList) && cardEventWatcher.isWatching();
+    }
+    
+    public synchronized ArrayList<CertificateData> getCertificateList(){
+        return new ArrayList<CertificateData>(certificateList);
+    }
+    
+    //To call before reading the certificates that will be passed to setCertificateList
+    public synchronized long getGeneration(){
+        startWatcher();
+        return generation;
+    }
+    
+    public synchronized void setCertificateList(ArrayList<CertificateData> certList, String[] dllList, long readGeneration){
+        if(readGeneration != generation)
+            return;
+        certificateList = new ArrayList<CertificateData>(certList);
+        certificateDllList = dllList.clone();
+    }
+    
+    public synchronized void invalidate(){
+        generation++;
+        certificateList = null;
+    }
+    
+    //A watcher that stopped because PC/SC was not available is started again at the next use
+    private void startWatcher(){
+        if(cardEventWatcher != null && (cardEventWatcher.isWatching() || cardEventWatcher.isAlive()))
+            return;
+        cardEventWatcher = new CardEventWatcher();
+        cardEventWatcher.start();
+    }
+    
+    private void fireCardEvent(String state){
+        System.out.println("Smart card readers changed: " + state);
+        invalidate();
+        if(cardEventListener != null)
+            cardEventListener.actionPerformed(new ActionEvent(this, 0, state));
+    }
+    
+    private static boolean isNoReadersException(Exception ex){
+        for(Throwable cause = ex; cause != null; cause = cause.getCause())
+            if(cause.getMessage() != null && cause.getMessage().contains("SCARD_E_NO_READERS_AVAILABLE"))
+                return true;
+        return false;
+    }
+    
+    private class CardEventWatcher extends Thread {
+        
+        private volatile boolean isWatching = false;
+        
+        public CardEventWatcher(){
+            super("Smart card event watcher");
+            setDaemon(true);
+        }
+        
+        public boolean isWatching(){
+            return isWatching;
+        }
+        
+        @Override
+        public void run() {
+            try{
+                CardTerminals terminals = TerminalFactory.getDefault().terminals();
+                String state = getState(terminals);
+                //The lists read before the watch started could be already outdated
+                invalidate();
+                isWatching = true;
+                while(true){
+                    try{
+                        terminals.waitForChange(watcherPollInterval);
+                    }catch(Exception ex){
+                        //No readers connected: waitForChange fails immediately, so just wait for the next poll. Any other failure stops the watch
+                        if(!isNoReadersException(ex))
+                            throw ex;
+                        Thread.sleep(watcherPollInterval);
+                    }
+                    String newState = getState(terminals);
+                    if(!newState.equals(state)){
+                        state = newState;
+                        fireCardEvent(state);
+                    }
+                }
+            }catch(Exception ex){
+                System.err.println("Impossible to watch the smart card readers, the certificate cache is disabled: " + ex.getMessage());
+            }
+            isWatching = false;
+            invalidate();
+        }
+        
+        private String getState(CardTerminals terminals) throws Exception{
+            String ret = "";
+            try{
+                for(CardTerminal terminal : terminals.list())
+                    ret += terminal.getName() + "=" + (terminal.isCardPresent() ? "card" : "empty") + ";";
+            }catch(javax.smartcardio.CardException ex){
+                if(!isNoReadersException(ex))
+                    throw ex;
+            }
+            return ret;
+        }
+    }
+}
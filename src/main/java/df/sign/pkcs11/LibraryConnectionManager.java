@@ -0,0 +1,180 @@
+/*
+    Websocket Smartcard Signer
+    Copyright (C) 2017  Damiano Falcioni (damiano.falcioni@gmail.com)
+    
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+    
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+    
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package df.sign.pkcs11;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/*
+ * Keep a PKCS11 library initialized between the connectToLibrary/disconnectLibrary calls.
+ * The library is finalized only after idleTimeout milliseconds without users, when another library is requested or when the connection is invalidated.
+ * A different library is loaded only when the current one has no users: the request waits at most switchTimeout milliseconds for them to release it.
+ * The library is finalized and initialized again only when nobody else is using it: a connection invalidated while shared is marked stale, and it is finalized when its last user releases it, so the sessions of the other users are never destroyed.
+ */
+public class LibraryConnectionManager {
+    
+    public static interface LibraryConnector {
+        public void initializeLibrary(String library) throws Exception, Error;
+        public void finalizeLibrary();
+    }
+    
+    public static final long CKR_DEVICE_ERROR = 0x00000030;
+    public static final long CKR_DEVICE_REMOVED = 0x00000032;
+    public static final long CKR_CRYPTOKI_NOT_INITIALIZED = 0x00000190;
+    public static final long CKR_CRYPTOKI_ALREADY_INITIALIZED = 0x00000191;
+    
+    public static long idleTimeout = 5 * 60 * 1000;
+    public static long switchTimeout = 60 * 1000;
+    private static Timer idleTimer = null;
+    
+    private LibraryConnector connector = null;
+    private Object lock = null;
+    private String library = null;
+    private int refCount = 0;
+    private boolean stale = false;
+    private TimerTask idleTask = null;
+    
+    public LibraryConnectionManager(LibraryConnector connector){
+        this(connector, null);
+    }
+    
+    //The lock can be shared with other managers when the libraries they handle can not be used concurrently
+    public LibraryConnectionManager(LibraryConnector connector, Object lock){
+        this.connector = connector;
+        this.lock = lock != null ? lock : this;
+    }
+    
+    public Object getLock(){
+        return lock;
+    }
+    
+    public static boolean isReinitializationRequired(long ckr){
+        return ckr == CKR_CRYPTOKI_NOT_INITIALIZED || ckr == CKR_DEVICE_ERROR || ckr == CKR_DEVICE_REMOVED;
+    }
+    
+    public void acquire(String library) throws Exception, Error{
+        synchronized (lock) {
+            long switchDeadline = System.currentTimeMillis() + switchTimeout;
+            //A stale library is not shared with new users: they wait the current ones to release it, then it is initialized again
+            while(this.library != null && (!this.library.equals(library) || stale) && refCount > 0){
+                long remaining = switchDeadline - System.currentTimeMillis();
+                if(remaining <= 0)
+                    throw new Exception("The library " + this.library + " is in use: impossible to switch to " + library);
+                lock.wait(remaining);
+            }
+            cancelIdleTask();
+            if(this.library != null && (!this.library.equals(library) || stale)){
+                System.out.println("Switching from " + this.library + " to " + library);
+                closeLibrary();
+            }
+            //The reference is counted only when the library is ready, so a failed initialization does not keep it from idling out
+            if(this.library == null){
+                connector.initializeLibrary(library);
+                this.library = library;
+            }
+            refCount++;
+        }
+    }
+    
+    public void release(){
+        synchronized (lock) {
+            if(refCount > 0)
+                refCount--;
+            if(refCount == 0)
+                lock.notifyAll();
+            if(refCount == 0 && library != null){
+                if(idleTimeout <= 0 || stale){
+                    closeLibrary();
+                    return;
+                }
+                idleTask = new TimerTask() {
+                    @Override
+                    public void run() {
+                        synchronized (lock) {
+                            if(refCount == 0 && idleTask == this)
+                                closeLibrary();
+                        }
+                    }
+                };
+                getIdleTimer().schedule(idleTask, idleTimeout);
+            }
+        }
+    }
+    
+    //Called by a user holding the library: it is reinitialized at once only when that user is the only one
+    public void reinitialize() throws Exception, Error{
+        synchronized (lock) {
+            String libraryToReinitialize = library;
+            if(libraryToReinitialize == null)
+                throw new Exception("No library to reinitialize");
+            if(refCount > 1){
+                stale = true;
+                throw new Exception("The library " + libraryToReinitialize + " must be initialized again: it will be when its other users release it");
+            }
+            System.out.println("Reinitialization of " + libraryToReinitialize);
+            closeLibrary();
+            connector.initializeLibrary(libraryToReinitialize);
+            library = libraryToReinitialize;
+        }
+    }
+    
+    //While the library is in use it is only marked stale, and it is finalized when the last user releases it
+    public void close(){
+        synchronized (lock) {
+            if(refCount > 0){
+                stale = true;
+                return;
+            }
+            closeLibrary();
+        }
+    }
+    
+    private void closeLibrary(){
+        cancelIdleTask();
+        stale = false;
+        if(library == null)
+            return;
+        System.out.println("Disconnection from " + library);
+        library = null;
+        connector.finalizeLibrary();
+    }
+    
+    public boolean isConnected(){
+        synchronized (lock) {
+            return library != null;
+        }
+    }
+    
+    public String getLibrary(){
+        synchronized (lock) {
+            return library;
+        }
+    }
+    
+    private void cancelIdleTask(){
+        if(idleTask != null)
+            idleTask.cancel();
+        idleTask = null;
+    }
+    
+    private static synchronized Timer getIdleTimer(){
+        if(idleTimer == null)
+            idleTimer = new Timer("PKCS11 library idle timer", true);
+        return idleTimer;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+    Websocket Smartcard Signer
+    Copyright (C) 2017  Damiano Falcioni (damiano.falcioni@gmail.com)
+    
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+    
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+    
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package df.sign.pkcs11;
+
+import java.util.HashSet;
+import java.util.Iterator;
+
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+
+import df.sign.SignUtils;
+import df.sign.utils.StringUtils;
+
+/*
+ * Remember the certificate, library, slot and token combinations that already produced a valid test signature
+ */
+public class LibraryVerificationCache {
+    
+    private HashSet<String> verifiedSet = new HashSet<String>();
+    
+    public synchronized boolean isVerified(CertificateData certData, String tokenSerial) throws Exception{
+        return verifiedSet.contains(getKey(certData, tokenSerial));
+    }
+    
+    public synchronized void setVerified(CertificateData certData, String tokenSerial) throws Exception{
+        verifiedSet.add(getKey(certData, tokenSerial));
+    }
+    
+    public synchronized void invalidate(CertificateData certData){
+        try{
+            String prefix = getKeyPrefix(certData);
+            Iterator<String> iterator = verifiedSet.iterator();
+            while(iterator.hasNext())
+                if(iterator.next().startsWith(prefix))
+                    iterator.remove();
+        }catch(Exception ex){
+            verifiedSet.clear();
+        }
+    }
+    
+    public synchronized void invalidateAll(){
+        verifiedSet.clear();
+    }
+    
+    private static String getKeyPrefix(CertificateData certData) throws Exception{
+        String fingerprint = StringUtils.toHexString(SignUtils.calculateHASH(CMSSignedDataGenerator.DIGEST_SHA256, certData.cert.getEncoded()));
+        return fingerprint + "|" + certData.dll + "|";
+    }
+    
+    private static String getKey(CertificateData certData, String tokenSerial) throws Exception{
+        return getKeyPrefix(certData) + certData.slot + "|" + tokenSerial;
+    }
+}
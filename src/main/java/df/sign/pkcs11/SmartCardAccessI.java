@@ -23,6 +23,7 @@ public interface SmartCardAccessI {
     public long[] connectToLibrary(String library) throws Exception, Error;
     public long getPinMinLength(long slotID) throws Exception, Error;
     public long getPinMaxLength(long slotID) throws Exception, Error;
+    public String getTokenSerial(long slotID) throws Exception, Error;
     public ArrayList<CertificateData> getCertificateList(long slotID) throws Exception, Error;
     public long login(long slotID, String pin) throws Exception, Error;
     public byte[] signData(long sessionID, byte[] certId, byte[] certLabel, byte[] data) throws Exception, Error;
@@ -17,6 +17,8 @@
  */
 package df.sign.pkcs11;
 
+import java.util.HashMap;
+
 import df.sign.pkcs11.impl.iaik.SmartCardAccessIaikImpl;
 import df.sign.pkcs11.impl.jna.SmartCardAccessJnaImpl;
 
@@ -43,4 +45,29 @@ public class SmartCardAccessManagerFactory {
         
         throw new Exception("The provided PKCS11 Access Method is not available");
     }
+    
+    //jacknji11 binds every call to its static C.NATIVE, so the JNA instances serialize all their calls on one lock: only IAIK can use different libraries at the same time
+    public static boolean isConcurrentAccessSupported(PKCS11AccessMethod method) {
+        return method == PKCS11AccessMethod.IAIK;
+    }
+    
+    //Each library gets its own instance, so different libraries can be loaded at the same time
+    private static HashMap<String, SmartCardAccessI> smartCardAccessManagerMap = new HashMap<String, SmartCardAccessI>();
+    
+    public static synchronized SmartCardAccessI getSmartCardAccessManager(PKCS11AccessMethod method, String library) throws Exception {
+        String key = method + "|" + library;
+        SmartCardAccessI smartCardAccessManager = smartCardAccessManagerMap.get(key);
+        if (smartCardAccessManager != null)
+            return smartCardAccessManager;
+        
+        if (method == PKCS11AccessMethod.JNA)
+            smartCardAccessManager = new SmartCardAccessJnaImpl();
+        else if (method == PKCS11AccessMethod.IAIK)
+            smartCardAccessManager = new SmartCardAccessIaikImpl();
+        else
+            throw new Exception("The provided PKCS11 Access Method is not available");
+        
+        smartCardAccessManagerMap.put(key, smartCardAccessManager);
+        return smartCardAccessManager;
+    }
 }
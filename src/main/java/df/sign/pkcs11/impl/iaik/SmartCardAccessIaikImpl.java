@@ -22,9 +22,11 @@ import iaik.pkcs.pkcs11.Module;
 import iaik.pkcs.pkcs11.Session;
 import iaik.pkcs.pkcs11.Slot;
 import iaik.pkcs.pkcs11.Token;
+import iaik.pkcs.pkcs11.TokenException;
 import iaik.pkcs.pkcs11.objects.RSAPrivateKey;
 import iaik.pkcs.pkcs11.objects.X509PublicKeyCertificate;
 import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
 
 import java.io.FileOutputStream;
 import java.io.InputStream;
@@ -32,20 +34,58 @@ import java.io.OutputStream;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 
 import df.sign.SignUtils;
 import df.sign.pkcs11.CertificateData;
+import df.sign.pkcs11.LibraryConnectionManager;
 import df.sign.pkcs11.SmartCardAccessI;
 import df.sign.utils.IOUtils;
+import df.sign.utils.StringUtils;
 import df.sign.utils.X509Utils;
 
 public class SmartCardAccessIaikImpl implements SmartCardAccessI{
     
+    private static String wrapperPath = null;
+    
+    //Each instance owns its own module: several libraries can be used concurrently through different instances
     private Module pkcs11Module = null;
-    private Session session = null;
-    private String wrapperPath = null;
+    private HashMap<Long, Session> sessionMap = new HashMap<Long, Session>();
+    //Private keys already identified in each logged session, by certificate ID and LABEL
+    private HashMap<Long, HashMap<String, RSAPrivateKey>> sessionPrivateKeyMap = new HashMap<Long, HashMap<String, RSAPrivateKey>>();
+    
+    private LibraryConnectionManager connectionManager = new LibraryConnectionManager(new LibraryConnectionManager.LibraryConnector() {
+        @Override
+        public void initializeLibrary(String library) throws Exception, Error {
+            prepareWrapper();
+            pkcs11Module = Module.getInstance(library, wrapperPath);
+            try{
+                pkcs11Module.initialize(null);
+            }catch(PKCS11Exception ex){
+                if(ex.getErrorCode() != LibraryConnectionManager.CKR_CRYPTOKI_ALREADY_INITIALIZED)
+                    throw ex;
+            }
+        }
+        @Override
+        public void finalizeLibrary() {
+            try{
+                if(pkcs11Module!=null)
+                    pkcs11Module.finalize(null);
+            }catch(Exception e){}catch(Error e){}
+            
+            pkcs11Module = null;
+            synchronized (sessionMap) {
+                sessionMap.clear();
+                sessionPrivateKeyMap.clear();
+            }
+        }
+    });
+    
+    private static boolean isReinitializationRequired(Exception ex){
+        return ex instanceof PKCS11Exception && LibraryConnectionManager.isReinitializationRequired(((PKCS11Exception) ex).getErrorCode());
+    }
     
-    private void prepareWrapper() throws Exception, Error{
+    private static synchronized void prepareWrapper() throws Exception, Error{
         if(wrapperPath!=null)
             return;
         
@@ -71,25 +111,44 @@ public class SmartCardAccessIaikImpl implements SmartCardAccessI{
         if(wrapperName.equals(""))
             throw new Exception("Impossible to detect which PKCS11Wrapper library to use for the OS '"+OS+"' and architecture '"+JVMArch+"'");
         
-        InputStream is = this.getClass().getResourceAsStream(wrapperName);
+        InputStream is = SmartCardAccessIaikImpl.class.getResourceAsStream(wrapperName);
         if(is==null)
             throw new Exception("The library " + wrapperName + " is not present in the jar");
         
-        wrapperPath = System.getProperty("java.io.tmpdir") + wrapperName;
-        OutputStream ou = new FileOutputStream(wrapperPath);
+        String wrapperTmpPath = System.getProperty("java.io.tmpdir") + wrapperName;
+        OutputStream ou = new FileOutputStream(wrapperTmpPath);
         IOUtils.copyInputStreamToOutputStream(is, ou);
         ou.close();
-        is.close();        
+        is.close();
+        wrapperPath = wrapperTmpPath;
     }
 
     public long[] connectToLibrary(String library) throws Exception, Error{
         System.out.println("Connection to " + library);
         
-        prepareWrapper();
-        pkcs11Module = Module.getInstance(library, wrapperPath);
-        pkcs11Module.initialize(null);
-        
-        Slot[] slotList = pkcs11Module.getSlotList(Module.SlotRequirement.TOKEN_PRESENT);
+        connectionManager.acquire(library);
+        //The library is released here when the connection fails, so disconnectLibrary is called only after a successful connection
+        try{
+            return getSignSlotList(library);
+        }catch(Exception ex){
+            connectionManager.release();
+            throw ex;
+        }catch(Error e){
+            connectionManager.release();
+            throw e;
+        }
+    }
+    
+    private long[] getSignSlotList(String library) throws Exception, Error{
+        Slot[] slotList = null;
+        try{
+            slotList = pkcs11Module.getSlotList(Module.SlotRequirement.TOKEN_PRESENT);
+        }catch(TokenException ex){
+            if(!isReinitializationRequired(ex))
+                throw ex;
+            connectionManager.reinitialize();
+            slotList = pkcs11Module.getSlotList(Module.SlotRequirement.TOKEN_PRESENT);
+        }
         if(slotList.length==0)
             throw new Exception("Unable to find smart card using library " + library);
 
@@ -123,7 +182,15 @@ public class SmartCardAccessIaikImpl implements SmartCardAccessI{
     private Slot getSlot(long slotID) throws Exception, Error{
         if(pkcs11Module==null)
             throw new Exception("pkcs11Module not initialized");
-        Slot[] slotList = pkcs11Module.getSlotList(Module.SlotRequirement.TOKEN_PRESENT);
+        Slot[] slotList = null;
+        try{
+            slotList = pkcs11Module.getSlotList(Module.SlotRequirement.TOKEN_PRESENT);
+        }catch(TokenException ex){
+            if(!isReinitializationRequired(ex))
+                throw ex;
+            connectionManager.reinitialize();
+            slotList = pkcs11Module.getSlotList(Module.SlotRequirement.TOKEN_PRESENT);
+        }
         for(Slot slot:slotList)
             if(slot.getSlotID()==slotID)
                 return slot;
@@ -138,10 +205,14 @@ public class SmartCardAccessIaikImpl implements SmartCardAccessI{
         return getSlot(slotID).getToken().getTokenInfo().getMaxPinLen();
     }
     
+    public String getTokenSerial(long slotID) throws Exception, Error{
+        return getSlot(slotID).getToken().getTokenInfo().getSerialNumber().trim();
+    }
+    
     public ArrayList<CertificateData> getCertificateList(long slotID) throws Exception, Error{
         ArrayList<CertificateData> ret = new ArrayList<CertificateData>();
         
-        session = getSlot(slotID).getToken().openSession(Token.SessionType.SERIAL_SESSION, Token.SessionReadWriteBehavior.RO_SESSION, null, null);
+        Session session = getSlot(slotID).getToken().openSession(Token.SessionType.SERIAL_SESSION, Token.SessionReadWriteBehavior.RO_SESSION, null, null);
         try {
             session.findObjectsInit(new X509PublicKeyCertificate());
             iaik.pkcs.pkcs11.objects.Object[] publicKeyCertificateObjectList = session.findObjects(1024);
@@ -165,27 +236,56 @@ public class SmartCardAccessIaikImpl implements SmartCardAccessI{
             return ret;
         } finally {
             session.closeSession();
-            session = null;
         }
     }
     
     public long login(long slotID, String pin) throws Exception, Error{
         Token token = getSlot(slotID).getToken();
-        session = token.openSession(Token.SessionType.SERIAL_SESSION, Token.SessionReadWriteBehavior.RO_SESSION, null, null);
+        Session session = token.openSession(Token.SessionType.SERIAL_SESSION, Token.SessionReadWriteBehavior.RO_SESSION, null, null);
         if (token.getTokenInfo().isLoginRequired()){
             if (token.getTokenInfo().isProtectedAuthenticationPath())
                 session.login(Session.UserType.USER, null);
             else
                 session.login(Session.UserType.USER, pin.toCharArray());
         }
+        synchronized (sessionMap) {
+            sessionMap.put(session.getSessionHandle(), session);
+            sessionPrivateKeyMap.put(session.getSessionHandle(), new HashMap<String, RSAPrivateKey>());
+        }
         return session.getSessionHandle();
     }
     
     public byte[] signData(long sessionID, byte[] certId, byte[] certLabel, byte[] data) throws Exception, Error{
-        if(session==null)
+        Session session = null;
+        HashMap<String, RSAPrivateKey> privateKeyMap = null;
+        synchronized (sessionMap) {
+            session = sessionMap.get(sessionID);
+            privateKeyMap = sessionPrivateKeyMap.get(sessionID);
+        }
+        if(session==null || privateKeyMap==null)
             throw new Exception("session not initialized");
         
-        RSAPrivateKey privateKeyToUse = null;        
+        RSAPrivateKey privateKeyToUse = getPrivateKey(session, privateKeyMap, certId, certLabel);
+        
+        try{
+            session.signInit(Mechanism.get(PKCS11Constants.CKM_RSA_PKCS), privateKeyToUse);
+            byte[] signature = session.sign(data);
+            return signature;
+        }catch(TokenException ex){
+            //The session is lost: the library is initialized again when all its users have released it
+            if(isReinitializationRequired(ex))
+                connectionManager.close();
+            throw ex;
+        }
+    }
+    
+    private RSAPrivateKey getPrivateKey(Session session, HashMap<String, RSAPrivateKey> privateKeyMap, byte[] certId, byte[] certLabel) throws Exception, Error{
+        String privateKeyKey = StringUtils.toHexString(certId) + "|" + StringUtils.toHexString(certLabel);
+        RSAPrivateKey privateKeyToUse = privateKeyMap.get(privateKeyKey);
+        if(privateKeyToUse != null)
+            return privateKeyToUse;
+        
+
         session.findObjectsInit(new RSAPrivateKey());
         iaik.pkcs.pkcs11.objects.Object[] privateKeyObjectList = session.findObjects(1024);
         
@@ -203,12 +303,17 @@ public class SmartCardAccessIaikImpl implements SmartCardAccessI{
         if(!privateKeyToUse.getSign().getBooleanValue())
             throw new Exception("The identified private key did not support supports signatures with appendix");
         
-        session.signInit(Mechanism.get(PKCS11Constants.CKM_RSA_PKCS), privateKeyToUse);
-        byte[] signature = session.sign(data);
-        return signature;
+        privateKeyMap.put(privateKeyKey, privateKeyToUse);
+        return privateKeyToUse;
     }
     
     public void closeSession(long sessionID){
+        Session session = null;
+        synchronized (sessionMap) {
+            session = sessionMap.remove(sessionID);
+            sessionPrivateKeyMap.remove(sessionID);
+        }
+        
         try{
             if(session!=null)
                 session.logout();
@@ -218,17 +323,10 @@ public class SmartCardAccessIaikImpl implements SmartCardAccessI{
             if(session!=null)
                 session.closeSession();
         }catch(Exception e){}catch(Error e){}
-        
-        session = null;
     }
 
     public void disconnectLibrary(){
-        try{
-            if(pkcs11Module!=null)
-                pkcs11Module.finalize(null);
-        }catch(Exception e){}catch(Error e){}
-        
-        pkcs11Module = null;
+        connectionManager.release();
     }
     
     /*
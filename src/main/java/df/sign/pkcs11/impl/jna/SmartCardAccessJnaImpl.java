@@ -20,35 +20,103 @@ package df.sign.pkcs11.impl.jna;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 
 import org.pkcs11.jacknji11.C;
 import org.pkcs11.jacknji11.CE;
 import org.pkcs11.jacknji11.CKA;
 import org.pkcs11.jacknji11.CKM;
 import org.pkcs11.jacknji11.CKO;
+import org.pkcs11.jacknji11.CKR;
+import org.pkcs11.jacknji11.CKRException;
 import org.pkcs11.jacknji11.CKU;
 import org.pkcs11.jacknji11.CK_MECHANISM_INFO;
 import org.pkcs11.jacknji11.CK_SESSION_INFO;
 import org.pkcs11.jacknji11.CK_TOKEN_INFO;
+import org.pkcs11.jacknji11.NativeProvider;
 import org.pkcs11.jacknji11.jna.JNA;
 
 import df.sign.SignUtils;
 import df.sign.pkcs11.CertificateData;
+import df.sign.pkcs11.LibraryConnectionManager;
 import df.sign.pkcs11.SmartCardAccessI;
 import df.sign.utils.StringUtils;
 import df.sign.utils.X509Utils;
 
 public class SmartCardAccessJnaImpl implements SmartCardAccessI {
+    
+    //jacknji11 calls the library set in the static C.NATIVE: each instance owns its binding and sets it before using the library
+    //Since the binding is global, all the calls of all the instances are serialized on this lock: the JNA access is never concurrent
+    private static final Object NATIVE_LOCK = new Object();
+    private NativeProvider nativeBinding = null;
+    
+    //Private key handles already identified in each logged session, by certificate ID and LABEL
+    private HashMap<Long, HashMap<String, Long>> sessionPrivateKeyMap = new HashMap<Long, HashMap<String, Long>>();
+    
+    private LibraryConnectionManager connectionManager = new LibraryConnectionManager(new LibraryConnectionManager.LibraryConnector() {
+        @Override
+        public void initializeLibrary(String library) throws Exception, Error {
+            nativeBinding = new JNA(library);
+            C.NATIVE = nativeBinding;
+            try{
+                CE.Initialize();
+            }catch(CKRException ex){
+                if(ex.getCKR() != CKR.CRYPTOKI_ALREADY_INITIALIZED)
+                    throw ex;
+            }
+        }
+        @Override
+        public void finalizeLibrary() {
+            try{
+                if(nativeBinding!=null){
+                    C.NATIVE = nativeBinding;
+                    CE.Finalize();
+                }
+            }catch(Exception e){}catch(Error e){}
+            
+            nativeBinding = null;
+            sessionPrivateKeyMap.clear();
+        }
+    }, NATIVE_LOCK);
+    
+    private void useNativeBinding() throws Exception{
+        if(nativeBinding==null)
+            throw new Exception("The library is not initialized");
+        C.NATIVE = nativeBinding;
+    }
 
     public long[] connectToLibrary(String library) throws Exception, Error{
-        System.out.println("Connection to " + library);
-        
-        C.NATIVE = new JNA(library);
-        CE.Initialize();
-        long[] slotList = CE.GetSlotList(true);
+        synchronized (NATIVE_LOCK) {
+            System.out.println("Connection to " + library);
+            
+            connectionManager.acquire(library);
+            //The library is released here when the connection fails, so disconnectLibrary is called only after a successful connection
+            try{
+                return getSignSlotList(library);
+            }catch(Exception ex){
+                connectionManager.release();
+                throw ex;
+            }catch(Error e){
+                connectionManager.release();
+                throw e;
+            }
+        }
+    }
+    
+    private long[] getSignSlotList(String library) throws Exception, Error{
+        useNativeBinding();
+        long[] slotList = null;
+        try{
+            slotList = CE.GetSlotList(true);
+        }catch(CKRException ex){
+            if(!LibraryConnectionManager.isReinitializationRequired(ex.getCKR()))
+                throw ex;
+            connectionManager.reinitialize();
+            slotList = CE.GetSlotList(true);
+        }
         if(slotList.length==0)
             throw new Exception("Unable to find smart card using library " + library);
-
+        
         ArrayList<Long> retArrLst = new ArrayList<Long>();
         for(long slot:slotList){
             try{
@@ -72,107 +140,167 @@ public class SmartCardAccessJnaImpl implements SmartCardAccessI {
     }
     
     public long getPinMinLength(long slotID) throws Exception, Error{
-        return CE.GetTokenInfo(slotID).ulMinPinLen;
+        synchronized (NATIVE_LOCK) {
+            useNativeBinding();
+            return CE.GetTokenInfo(slotID).ulMinPinLen;
+        }
     }
     
     public long getPinMaxLength(long slotID) throws Exception, Error{
-        return CE.GetTokenInfo(slotID).ulMaxPinLen;
+        synchronized (NATIVE_LOCK) {
+            useNativeBinding();
+            return CE.GetTokenInfo(slotID).ulMaxPinLen;
+        }
+    }
+    
+    public String getTokenSerial(long slotID) throws Exception, Error{
+        synchronized (NATIVE_LOCK) {
+            useNativeBinding();
+            return new String(CE.GetTokenInfo(slotID).serialNumber).trim();
+        }
+    }
+    
+    private long openSession(long slotID) throws Exception, Error{
+        try{
+            return CE.OpenSession(slotID, (CK_SESSION_INFO.CKF_RW_SESSION | CK_SESSION_INFO.CKF_SERIAL_SESSION), null, null);
+        }catch(CKRException ex){
+            if(!LibraryConnectionManager.isReinitializationRequired(ex.getCKR()))
+                throw ex;
+            connectionManager.reinitialize();
+            return CE.OpenSession(slotID, (CK_SESSION_INFO.CKF_RW_SESSION | CK_SESSION_INFO.CKF_SERIAL_SESSION), null, null);
+        }
     }
     
     public ArrayList<CertificateData> getCertificateList(long slotID) throws Exception{
-        ArrayList<CertificateData> ret = new ArrayList<CertificateData>();
-
-        long sessionID = CE.OpenSession(slotID, (CK_SESSION_INFO.CKF_RW_SESSION | CK_SESSION_INFO.CKF_SERIAL_SESSION), null, null);
-        try {
-            long[] objectIdList = CE.FindObjects(sessionID, new CKA[]{ new CKA(CKA.CLASS, CKO.CERTIFICATE)});
+        synchronized (NATIVE_LOCK) {
+            useNativeBinding();
+            ArrayList<CertificateData> ret = new ArrayList<CertificateData>();
             
-            for(long objectId:objectIdList){
-                CKA[] ckaId = new CKA[]{ new CKA(CKA.ID, new byte[255])};
-                CE.GetAttributeValue(sessionID, objectId, ckaId);
-                byte[] id = StringUtils.trim(ckaId[0].getValue());
-                
-                CKA[] ckaLabel = new CKA[]{ new CKA(CKA.LABEL, new byte[255])};
-                CE.GetAttributeValue(sessionID, objectId, ckaLabel);
-                byte[] label = StringUtils.trim(ckaLabel[0].getValue());
+            long sessionID = openSession(slotID);
+            try {
+                long[] objectIdList = CE.FindObjects(sessionID, new CKA[]{ new CKA(CKA.CLASS, CKO.CERTIFICATE)});
                 
-                CKA[] ckaValue = new CKA[]{ new CKA(CKA.VALUE, new byte[2048])};
-                CE.GetAttributeValue(sessionID, objectId, ckaValue);
-                X509Certificate cert = X509Utils.getX509Certificate(ckaValue[0].getValue());
+                for(long objectId:objectIdList){
+                    CKA[] ckaIdLabelValue = CE.GetAttributeValue(sessionID, objectId, CKA.ID, CKA.LABEL, CKA.VALUE);
+                    byte[] id = getAttributeValue(ckaIdLabelValue[0]);
+                    byte[] label = getAttributeValue(ckaIdLabelValue[1]);
+                    byte[] certBytes = getAttributeValue(ckaIdLabelValue[2]);
+                    
+                    X509Certificate cert = X509Utils.getX509Certificate(certBytes);
+                    if(cert == null || cert.getKeyUsage() == null || !(cert.getKeyUsage()[0] || cert.getKeyUsage()[1]))
+                        continue;
+                    CertificateData cd = new CertificateData();
+                    cd.certID = id;
+                    cd.certLABEL = label;
+                    cd.cert = cert;
+                    ret.add(cd);
+                }
                 
-                if(!(cert.getKeyUsage()[0] || cert.getKeyUsage()[1]))
-                    continue;
-                CertificateData cd = new CertificateData();
-                cd.certID = id;
-                cd.certLABEL = label;
-                cd.cert = cert;
-                ret.add(cd);
+                return ret;
+            } finally {
+                CE.CloseSession(sessionID);
             }
-            
-            return ret;
-        } finally {
-            CE.CloseSession(sessionID);
         }
     }
     
+    //The attribute values are read with their exact length: an empty attribute is returned as an empty array
+    private static byte[] getAttributeValue(CKA cka){
+        byte[] value = cka.getValue();
+        return value == null ? new byte[0] : value;
+    }
+    
     public long login(long slotID, String pin) throws Exception, Error{
-        
-        long session = CE.OpenSession(slotID, (CK_SESSION_INFO.CKF_RW_SESSION | CK_SESSION_INFO.CKF_SERIAL_SESSION), null, null);
-        CK_TOKEN_INFO tokenInfo = (CK_TOKEN_INFO) CE.GetTokenInfo(slotID);
-        
-        if(tokenInfo.isFlagSet(CK_TOKEN_INFO.CKF_LOGIN_REQUIRED)){
-            if(tokenInfo.isFlagSet(CK_TOKEN_INFO.CKF_PROTECTED_AUTHENTICATION_PATH))
-                CE.Login(session, CKU.USER, null);
-            else
-                CE.Login(session, CKU.USER, pin.getBytes());
+        synchronized (NATIVE_LOCK) {
+            useNativeBinding();
+            long session = openSession(slotID);
+            CK_TOKEN_INFO tokenInfo = (CK_TOKEN_INFO) CE.GetTokenInfo(slotID);
+            
+            if(tokenInfo.isFlagSet(CK_TOKEN_INFO.CKF_LOGIN_REQUIRED)){
+                if(tokenInfo.isFlagSet(CK_TOKEN_INFO.CKF_PROTECTED_AUTHENTICATION_PATH))
+                    CE.Login(session, CKU.USER, null);
+                else
+                    CE.Login(session, CKU.USER, pin.getBytes());
+            }
+            sessionPrivateKeyMap.put(session, new HashMap<String, Long>());
+            return session;
         }
-        return session;
     }
     
     public byte[] signData(long sessionID, byte[] certId, byte[] certLabel, byte[] data) throws Exception, Error{
+        synchronized (NATIVE_LOCK) {
+            useNativeBinding();
+            long privateKeyObjectIdToUse = getPrivateKey(sessionID, certId, certLabel);
+            
+            try{
+                byte[] signature = CE.Sign(sessionID,  new CKM(CKM.RSA_PKCS, null), privateKeyObjectIdToUse, data);
+                return signature;
+            }catch(CKRException ex){
+                //The session is lost: the library is initialized again when all its users have released it
+                if(LibraryConnectionManager.isReinitializationRequired(ex.getCKR())){
+                    sessionPrivateKeyMap.remove(sessionID);
+                    connectionManager.close();
+                }
+                throw ex;
+            }
+        }
+    }
+    
+    private long getPrivateKey(long sessionID, byte[] certId, byte[] certLabel) throws Exception, Error{
+        HashMap<String, Long> privateKeyMap = sessionPrivateKeyMap.get(sessionID);
+        if(privateKeyMap == null){
+            privateKeyMap = new HashMap<String, Long>();
+            sessionPrivateKeyMap.put(sessionID, privateKeyMap);
+        }
+        String privateKeyKey = StringUtils.toHexString(certId) + "|" + StringUtils.toHexString(certLabel);
+        Long cachedPrivateKeyObjectId = privateKeyMap.get(privateKeyKey);
+        if(cachedPrivateKeyObjectId != null)
+            return cachedPrivateKeyObjectId;
         
         long[] privateKeyObjectIdList = CE.FindObjects(sessionID, new CKA[]{ new CKA(CKA.CLASS, CKO.PRIVATE_KEY)});
         long privateKeyObjectIdToUse = -1;
         
+        boolean isForSign = false;
+        
         for(long privateKeyObjectId : privateKeyObjectIdList) {
-            CKA[] ckaId = new CKA[]{ new CKA(CKA.ID, new byte[255])};
-            CE.GetAttributeValue(sessionID, privateKeyObjectId, ckaId);
-            byte[] id = StringUtils.trim(ckaId[0].getValue());
-            
-            CKA[] ckaLabel = new CKA[]{ new CKA(CKA.LABEL, new byte[255])};
-            CE.GetAttributeValue(sessionID, privateKeyObjectId, ckaLabel);
-            byte[] label = StringUtils.trim(ckaLabel[0].getValue());
+            CKA[] ckaIdLabelSign = CE.GetAttributeValue(sessionID, privateKeyObjectId, CKA.ID, CKA.LABEL, CKA.SIGN);
+            byte[] id = getAttributeValue(ckaIdLabelSign[0]);
+            byte[] label = getAttributeValue(ckaIdLabelSign[1]);
             
-            if(Arrays.equals(id, certId) || Arrays.equals(label, certLabel))
+            if(Arrays.equals(id, certId) || Arrays.equals(label, certLabel)){
                 privateKeyObjectIdToUse = privateKeyObjectId;
+                isForSign = ckaIdLabelSign[2].getValue() != null && ckaIdLabelSign[2].getValueBool();
+            }
         }
         
         if(privateKeyObjectIdToUse==-1)
             throw new Exception("Impossible to identify a private key using the provided ID or LABEL");
         
-        CKA[] ckaSign = new CKA[]{ new CKA(CKA.SIGN, new byte[255])};
-        CE.GetAttributeValue(sessionID, privateKeyObjectIdToUse, ckaSign);
-        boolean isForSign = ckaSign[0].getValueBool();
         if(!isForSign)
             throw new Exception("The identified private key did not support supports signatures with appendix");
         
-        byte[] signature = CE.Sign(sessionID,  new CKM(CKM.RSA_PKCS, null), privateKeyObjectIdToUse, data);
-        return signature;
+        privateKeyMap.put(privateKeyKey, privateKeyObjectIdToUse);
+        return privateKeyObjectIdToUse;
     }
     
     public void closeSession(long sessionID){
-        try{
-            CE.Logout(sessionID);
-        }catch(Exception e){}catch(Error e){}
-        
-        try{
-            CE.CloseSession(sessionID);
-        }catch(Exception e){}catch(Error e){}
+        synchronized (NATIVE_LOCK) {
+            sessionPrivateKeyMap.remove(sessionID);
+            if(nativeBinding==null)
+                return;
+            C.NATIVE = nativeBinding;
+            
+            try{
+                CE.Logout(sessionID);
+            }catch(Exception e){}catch(Error e){}
+            
+            try{
+                CE.CloseSession(sessionID);
+            }catch(Exception e){}catch(Error e){}
+        }
     }
 
     public void disconnectLibrary(){
-        try{
-            CE.Finalize();
-        }catch(Exception e){}catch(Error e){}
+        connectionManager.release();
     }
     
     /*
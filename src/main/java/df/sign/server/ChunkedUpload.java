@@ -0,0 +1,167 @@
+/*
+    Websocket Smartcard Signer
+    Copyright (C) 2017  Damiano Falcioni (damiano.falcioni@gmail.com)
+    
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+    
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+    
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package df.sign.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import df.sign.datastructure.Data;
+
+/*
+ * Spool the chunks of an upload to temporary files, one for each data to sign.
+ * The chunks of a data must arrive in sequence order, and the data must be completed in the order they have been declared.
+ * The chunks are written to disk by a dedicated thread and acknowledged only when written: a chunk arriving while window chunks are still waiting to be written is rejected, so at most window chunks of an upload are kept in memory.
+ */
+public class ChunkedUpload {
+    
+    public static interface ChunkWrittenListener {
+        public void onChunkWritten(int index, long seq);
+    }
+    
+    private List<Data> dataToSignList = null;
+    private String[] dllList = null;
+    private int window = 0;
+    private ChunkWrittenListener listener = null;
+    private int currentIndex = 0;
+    private long nextSeq = 0;
+    private AtomicInteger pendingChunks = new AtomicInteger(0);
+    private volatile Exception writeError = null;
+    private ExecutorService writer = Executors.newSingleThreadExecutor();
+    //Used only by the writer thread
+    private int writingIndex = -1;
+    private OutputStream currentStream = null;
+    
+    public ChunkedUpload(List<Data> dataToSignList, String[] dllList, int window, ChunkWrittenListener listener) throws Exception{
+        if(dataToSignList.size() == 0)
+            throw new Exception("No data to sign");
+        this.dataToSignList = dataToSignList;
+        this.dllList = dllList;
+        this.window = Math.max(1, window);
+        this.listener = listener;
+        for(Data dataToSign : dataToSignList){
+            dataToSign.data = null;
+            dataToSign.file = null;
+        }
+    }
+    
+    public void appendChunk(final int index, final long seq, final byte[] chunk) throws Exception{
+        if(writeError != null)
+            throw writeError;
+        if(index < currentIndex || index >= dataToSignList.size())
+            throw new Exception("Unexpected chunk for the data " + index);
+        if(index > currentIndex){
+            currentIndex = index;
+            nextSeq = 0;
+        }
+        if(seq != nextSeq)
+            throw new Exception("Unexpected chunk " + seq + " for the data " + index + ": expected chunk " + nextSeq);
+        if(pendingChunks.get() >= window)
+            throw new Exception("Chunk " + seq + " of the data " + index + " sent beyond the upload window: wait for the acknowledgement of the previous chunks");
+        
+        pendingChunks.incrementAndGet();
+        nextSeq++;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean written = false;
+                try{
+                    if(writeError == null){
+                        writeChunk(index, chunk);
+                        written = true;
+                    }
+                }catch(Exception ex){
+                    writeError = ex;
+                }finally{
+                    pendingChunks.decrementAndGet();
+                }
+                if(written && listener != null)
+                    listener.onChunkWritten(index, seq);
+            }
+        });
+    }
+    
+    public List<Data> end() throws Exception{
+        try{
+            writer.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    closeCurrentStream();
+                    return null;
+                }
+            }).get();
+        }catch(ExecutionException ex){
+            throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        }finally{
+            writer.shutdown();
+        }
+        if(writeError != null)
+            throw writeError;
+        for(Data dataToSign : dataToSignList)
+            if(dataToSign.file == null)
+                throw new Exception("No content received for the data " + dataToSign.id);
+        return dataToSignList;
+    }
+    
+    public String[] getDllList(){
+        return dllList;
+    }
+    
+    public void discard(){
+        writer.shutdownNow();
+        try{
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+            closeCurrentStream();
+        }catch(Exception e){}
+        deleteFiles(dataToSignList);
+    }
+    
+    public static void deleteFiles(List<Data> dataList){
+        for(Data data : dataList)
+            if(data.file != null)
+                data.file.delete();
+    }
+    
+    private void writeChunk(int index, byte[] chunk) throws Exception{
+        if(index != writingIndex){
+            closeCurrentStream();
+            writingIndex = index;
+        }
+        if(currentStream == null){
+            File file = File.createTempFile("websocket_smartcard_signer_", ".upload");
+            dataToSignList.get(index).file = file;
+            currentStream = new FileOutputStream(file);
+        }
+        currentStream.write(chunk);
+    }
+    
+    private void closeCurrentStream() throws Exception{
+        if(currentStream == null)
+            return;
+        OutputStream stream = currentStream;
+        currentStream = null;
+        stream.close();
+    }
+}
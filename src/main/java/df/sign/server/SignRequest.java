@@ -0,0 +1,267 @@
+/*
+    Websocket Smartcard Signer
+    Copyright (C) 2017  Damiano Falcioni (damiano.falcioni@gmail.com)
+    
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+    
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+    
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package df.sign.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+
+import org.bouncycastle.util.encoders.Base64;
+
+/*
+ * A sign request read with a streaming parser, without building the Json tree of the whole message.
+ * The Base64 contents are decoded as soon as they are parsed: the big ones directly into a spool file, that must be deleted with discard when the request is no more needed.
+ */
+public class SignRequest {
+    
+    public static class DataItem {
+        public String id = null;
+        public String handle = null;
+        public JsonObject params = null;
+        //The Base64 field the content has been read from: contentB64, hashB64 or signatureB64
+        public String contentField = null;
+        public byte[] content = null;
+        public File contentFile = null;
+    }
+    
+    //Base64 contents longer than this are decoded to a spool file instead of memory
+    public static int spoolThreshold = 4 * 1024 * 1024;
+    
+    public String action = "sign";
+    public String[] dllList = null;
+    public boolean streamResults = false;
+    public boolean binaryResponse = false;
+    //Optional: echoed in the responses, so more requests can be sent on the same connection
+    public String requestId = null;
+    //Optional: the requests of the same client with the same token are signed together with one certificate selection and PIN
+    public String batchToken = null;
+    public int index = -1;
+    public long seq = -1;
+    public byte[] content = null;
+    public String certificateB64 = null;
+    public List<DataItem> dataToSign = null;
+    public List<DataItem> dataToFinalize = null;
+    
+    public static SignRequest parse(Reader messageReader) throws Exception{
+        SignRequest request = new SignRequest();
+        JsonParser parser = Json.createParser(messageReader);
+        try{
+            if(!parser.hasNext() || parser.next() != Event.START_OBJECT)
+                throw new Exception("Expected Json Object");
+            Event event = null;
+            while((event = parser.next()) != Event.END_OBJECT){
+                String key = parser.getString();
+                event = parser.next();
+                if(key.equals("action"))
+                    request.action = getString(parser, event, key);
+                else if(key.equals("dllList"))
+                    request.dllList = readStringArray(parser, event, key);
+                else if(key.equals("streamResults"))
+                    request.streamResults = getBoolean(event, key);
+                else if(key.equals("binaryResponse"))
+                    request.binaryResponse = getBoolean(event, key);
+                else if(key.equals("requestId"))
+                    request.requestId = getString(parser, event, key);
+                else if(key.equals("batchToken"))
+                    request.batchToken = getString(parser, event, key);
+                else if(key.equals("index"))
+                    request.index = (int) getLong(parser, event, key);
+                else if(key.equals("seq"))
+                    request.seq = getLong(parser, event, key);
+                else if(key.equals("contentB64"))
+                    request.content = decodeToMemory(getString(parser, event, key));
+                else if(key.equals("certificateB64"))
+                    request.certificateB64 = getString(parser, event, key);
+                else if(key.equals("dataToSign"))
+                    request.dataToSign = readDataItemList(parser, event, key, request);
+                else if(key.equals("dataToFinalize"))
+                    request.dataToFinalize = readDataItemList(parser, event, key, request);
+                else
+                    readValue(parser, event);
+            }
+        }catch(Exception ex){
+            request.discard();
+            throw ex;
+        }finally{
+            parser.close();
+        }
+        return request;
+    }
+    
+    public void discard(){
+        discard(dataToSign);
+        discard(dataToFinalize);
+    }
+    
+    private static void discard(List<DataItem> dataItemList){
+        if(dataItemList == null)
+            return;
+        for(DataItem dataItem : dataItemList)
+            if(dataItem.contentFile != null)
+                dataItem.contentFile.delete();
+    }
+    
+    private static List<DataItem> readDataItemList(JsonParser parser, Event event, String key, SignRequest request) throws Exception{
+        if(event != Event.START_ARRAY)
+            throw new Exception(key + " must be an array");
+        List<DataItem> dataItemList = new ArrayList<DataItem>();
+        //The list is referenced by the request before it is filled, so the already spooled contents are deleted if the parsing fails
+        if(key.equals("dataToSign"))
+            request.dataToSign = dataItemList;
+        else
+            request.dataToFinalize = dataItemList;
+        
+        while((event = parser.next()) != Event.END_ARRAY){
+            if(event != Event.START_OBJECT)
+                throw new Exception("Expected Json Object");
+            DataItem dataItem = new DataItem();
+            dataItemList.add(dataItem);
+            while((event = parser.next()) != Event.END_OBJECT){
+                String itemKey = parser.getString();
+                event = parser.next();
+                if(itemKey.equals("id"))
+                    dataItem.id = getString(parser, event, itemKey);
+                else if(itemKey.equals("handle"))
+                    dataItem.handle = getString(parser, event, itemKey);
+                else if(itemKey.equals("params")){
+                    if(event != Event.START_OBJECT)
+                        throw new Exception("params must be an object");
+                    dataItem.params = readObject(parser).build();
+                } else if(itemKey.equals("contentB64") || itemKey.equals("hashB64") || itemKey.equals("signatureB64")){
+                    String contentB64 = getString(parser, event, itemKey);
+                    dataItem.contentField = itemKey;
+                    if(dataItem.contentFile != null)
+                        dataItem.contentFile.delete();
+                    dataItem.contentFile = null;
+                    if(contentB64.length() > spoolThreshold){
+                        dataItem.contentFile = decodeToFile(contentB64);
+                        dataItem.content = null;
+                    } else
+                        dataItem.content = decodeToMemory(contentB64);
+                } else
+                    readValue(parser, event);
+            }
+        }
+        return dataItemList;
+    }
+    
+    private static byte[] decodeToMemory(String contentB64) throws Exception{
+        ByteArrayOutputStream out = new ByteArrayOutputStream(contentB64.length() / 4 * 3 + 3);
+        Base64.decode(contentB64, out);
+        return out.toByteArray();
+    }
+    
+    private static File decodeToFile(String contentB64) throws Exception{
+        File file = File.createTempFile("websocket_smartcard_signer_", ".upload");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        try{
+            Base64.decode(contentB64, out);
+            out.close();
+        }catch(Exception ex){
+            try{
+                out.close();
+            }catch(Exception e){}
+            file.delete();
+            throw ex;
+        }
+        return file;
+    }
+    
+    private static String getString(JsonParser parser, Event event, String key) throws Exception{
+        if(event != Event.VALUE_STRING)
+            throw new Exception(key + " must be a string");
+        return parser.getString();
+    }
+    
+    private static long getLong(JsonParser parser, Event event, String key) throws Exception{
+        if(event != Event.VALUE_NUMBER)
+            throw new Exception(key + " must be a number");
+        return parser.getLong();
+    }
+    
+    private static boolean getBoolean(Event event, String key) throws Exception{
+        if(event != Event.VALUE_TRUE && event != Event.VALUE_FALSE)
+            throw new Exception(key + " must be a boolean");
+        return event == Event.VALUE_TRUE;
+    }
+    
+    private static String[] readStringArray(JsonParser parser, Event event, String key) throws Exception{
+        if(event != Event.START_ARRAY)
+            throw new Exception(key + " must be an array");
+        List<String> ret = new ArrayList<String>();
+        while((event = parser.next()) != Event.END_ARRAY)
+            ret.add(getString(parser, event, key));
+        return ret.toArray(new String[ret.size()]);
+    }
+    
+    //Only the small objects, like the params, are built as Json tree
+    private static JsonObjectBuilder readObject(JsonParser parser) throws Exception{
+        JsonObjectBuilder builder = Json.createObjectBuilder();
+        Event event = null;
+        while((event = parser.next()) != Event.END_OBJECT){
+            String key = parser.getString();
+            event = parser.next();
+            switch(event){
+                case START_OBJECT: builder.add(key, readObject(parser)); break;
+                case START_ARRAY: builder.add(key, readArray(parser)); break;
+                case VALUE_STRING: builder.add(key, parser.getString()); break;
+                case VALUE_NUMBER: builder.add(key, parser.getBigDecimal()); break;
+                case VALUE_TRUE: builder.add(key, true); break;
+                case VALUE_FALSE: builder.add(key, false); break;
+                default: builder.addNull(key);
+            }
+        }
+        return builder;
+    }
+    
+    private static JsonArrayBuilder readArray(JsonParser parser) throws Exception{
+        JsonArrayBuilder builder = Json.createArrayBuilder();
+        Event event = null;
+        while((event = parser.next()) != Event.END_ARRAY){
+            switch(event){
+                case START_OBJECT: builder.add(readObject(parser)); break;
+                case START_ARRAY: builder.add(readArray(parser)); break;
+                case VALUE_STRING: builder.add(parser.getString()); break;
+                case VALUE_NUMBER: builder.add(parser.getBigDecimal()); break;
+                case VALUE_TRUE: builder.add(true); break;
+                case VALUE_FALSE: builder.add(false); break;
+                default: builder.addNull();
+            }
+        }
+        return builder;
+    }
+    
+    private static void readValue(JsonParser parser, Event event) throws Exception{
+        if(event == Event.START_OBJECT)
+            readObject(parser);
+        else if(event == Event.START_ARRAY)
+            readArray(parser);
+    }
+}
@@ -19,13 +19,16 @@ package df.sign.server;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.HashMap;
 
+import org.glassfish.tyrus.core.TyrusWebSocketEngine;
 import org.glassfish.tyrus.server.Server;
 
 public class WebSocketServer extends Thread {
 
     public final static int defaultPort = 8765;
     private Server server = null;
+    private WebSocketServerConfig config = null;
     
     private int port = -1;
     private boolean isStarted = false;
@@ -38,8 +41,21 @@ public class WebSocketServer extends Thread {
     private ActionListener statusChangelistener = null;
     
     public WebSocketServer(int port){
-        this.port = port;
-        server = new Server("0.0.0.0", this.port, "/websockets", null, WebSocketService.class);
+        this(getConfig(port));
+    }
+    
+    public WebSocketServer(WebSocketServerConfig config){
+        this.port = config.port;
+        this.config = config;
+        HashMap<String, Object> properties = new HashMap<String, Object>();
+        properties.put(TyrusWebSocketEngine.INCOMING_BUFFER_SIZE, config.incomingBufferSize);
+        server = new Server("0.0.0.0", this.port, "/websockets", properties, WebSocketService.class);
+    }
+    
+    private static WebSocketServerConfig getConfig(int port){
+        WebSocketServerConfig config = new WebSocketServerConfig();
+        config.port = port;
+        return config;
     }
     
     public void onStatusChanged(ActionListener listener){
@@ -74,7 +90,7 @@ public class WebSocketServer extends Thread {
         isTerminated = false;
         terminate = false;
         try {
-            server.start();
+            WebSocketServiceConfigurator.startServer(server, config);
             if(statusChangelistener!=null)
                 statusChangelistener.actionPerformed(new ActionEvent(this, 0, "started"));
         } catch (Exception e) {
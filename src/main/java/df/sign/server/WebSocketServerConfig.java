@@ -0,0 +1,30 @@
+/*
+    Websocket Smartcard Signer
+    Copyright (C) 2017  Damiano Falcioni (damiano.falcioni@gmail.com)
+    
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+    
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+    
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package df.sign.server;
+
+public class WebSocketServerConfig {
+    public int port = WebSocketServer.defaultPort;
+    //Compress the messages when the client supports it: useful on slow connections, but it costs CPU time on the local ones
+    public boolean perMessageDeflate = false;
+    //The sizes are in bytes and the timeout in milliseconds: a value less than or equal to 0 keeps the container default
+    public int maxTextMessageSize = -1;
+    public int maxBinaryMessageSize = -1;
+    //The binary documents are received as single messages: the incoming buffer must be able to contain the biggest one
+    public int incomingBufferSize = 64 * 1024 * 1024;
+    public long idleTimeout = -1;
+}
@@ -17,100 +17,606 @@
  */
 package df.sign.server;
 
-import java.io.StringReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
-import javax.json.JsonValue.ValueType;
+import javax.json.JsonObjectBuilder;
+import javax.websocket.EndpointConfig;
 import javax.websocket.OnClose;
 import javax.websocket.OnError;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
 import javax.websocket.Session;
 import javax.websocket.server.ServerEndpoint;
+import javax.websocket.server.ServerEndpointConfig;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.glassfish.tyrus.core.TyrusSession;
 
 import df.sign.SignFactory;
+import df.sign.SignScheduler;
 import df.sign.SignUI;
 import df.sign.SignUtils;
 import df.sign.datastructure.Data;
+import df.sign.datastructure.PreparedPDF;
 import df.sign.datastructure.SignConfig;
+import df.sign.utils.IOUtils;
+import df.sign.utils.X509Utils;
 
-@ServerEndpoint(value = "/sign")
+@ServerEndpoint(value = "/sign", configurator = WebSocketServiceConfigurator.class)
 public class WebSocketService {
     private Session session = null;
+    private List<Data> binaryDataToSignList = null;
+    private String[] binaryDllList = null;
+    private int binaryDataReceived = 0;
+    private boolean binaryStreamResults = false;
+    private SignRequest binaryRequest = null;
+    private ChunkedUpload chunkedUpload = null;
+    private SignRequest chunkedUploadRequest = null;
+    
+    //Maximum number of chunks the client can send without waiting for their acknowledgement
+    public static int uploadWindow = 8;
     
     public void sendTestData() {
-        session.getAsyncRemote().sendText("{\"dataSigned\" : []}");
+        sendResponse(session, "{\"dataSigned\" : []}");
     }
     
     @OnOpen
-    public void open(Session session) {
+    public void open(Session session, EndpointConfig endpointConfig) {
         this.session = session;
+        WebSocketServerConfig config = WebSocketServiceConfigurator.getServerConfig((ServerEndpointConfig) endpointConfig);
+        if(config.maxTextMessageSize > 0)
+            session.setMaxTextMessageBufferSize(config.maxTextMessageSize);
+        if(config.maxBinaryMessageSize > 0)
+            session.setMaxBinaryMessageBufferSize(config.maxBinaryMessageSize);
+        if(config.idleTimeout > 0)
+            session.setMaxIdleTimeout(config.idleTimeout);
     }
     
     @OnClose
-    public void onClose(Session session) {}
+    public void onClose(Session session) {
+        discardUpload();
+        discardBinaryData();
+    }
     
     @OnError
     public void onError(Throwable exception, Session session) {}
     
+    //The request is queued in the sign scheduler: the answer is sent when the job ends, without keeping the websocket thread busy
+    //The message is read as a stream, so the whole request is never kept in memory both as text and as Json tree
     @OnMessage
-    public String startSignProcess(String message, Session session) {
+    public void startSignProcess(Reader messageReader, final Session session) {
+        SignRequest request = null;
+        boolean spoolInUse = false;
         try{
-            JsonObject jsonObject = Json.createReader(new StringReader(message)).readObject();
-            JsonArray dataToSignArray = jsonObject.getJsonArray("dataToSign");
-            JsonArray dllList = jsonObject.getJsonArray("dllList");
-            String[] pkcs11DllList = null;
-            if(dllList != null) {
-                pkcs11DllList = new String[dllList.size()];
-                for(int i=0;i<dllList.size();i++)
-                    pkcs11DllList[i] = dllList.getString(i);
+            request = SignRequest.parse(messageReader);
+            String action = request.action;
+            final String requestId = request.requestId;
+            
+            if(action.equals("uploadBegin")){
+                //The contents are sent later in chunks: each chunk is acknowledged when written to disk, and the chunks sent with more than uploadWindow chunks not acknowledged are rejected
+                discardUpload();
+                chunkedUpload = new ChunkedUpload(getDataToSignList(request.dataToSign, null), request.dllList, uploadWindow, new ChunkedUpload.ChunkWrittenListener() {
+                    @Override
+                    public void onChunkWritten(int index, long seq) {
+                        sendResponse(session, "{\"ack\" : {\"index\" : " + index + ", \"seq\" : " + seq + "}}");
+                    }
+                });
+                chunkedUploadRequest = request;
+                sendResponse(session, "{\"upload\" : \"ready\", \"window\" : " + uploadWindow + "}");
+                return;
             }
             
-            List<Data> dataToSignList = new ArrayList<Data>();
-
-            for(int i=0; i<dataToSignArray.size();i++){
-                if(dataToSignArray.get(i).getValueType()!=ValueType.OBJECT)
-                    throw new Exception("Expected Json Object");
-                String id = ((JsonObject)dataToSignArray.get(i)).getString("id");
-                String contentB64 = ((JsonObject)dataToSignArray.get(i)).getString("contentB64");
-                byte[] content = SignUtils.base64Decode(contentB64.getBytes("UTF-8"));
-                SignConfig config = new SignConfig();
-                JsonObject parameters = ((JsonObject)dataToSignArray.get(i)).getJsonObject("params");
-                
-                if(parameters != null){
-                    config.signPdfAsP7m = parameters.getBoolean("signPdfAsP7m", false);
-                    config.visibleSignature = parameters.getBoolean("visibleSignature", true);
-                    config.pageNumToSign = parameters.getInt("pageNumToSign", -1);
-                    config.signPosition = parameters.getString("signPosition", "left");
+            if(action.equals("uploadChunk")){
+                if(chunkedUpload == null)
+                    throw new Exception("Unexpected chunk: an uploadBegin must be sent first");
+                if(request.content == null)
+                    throw new Exception("contentB64 must be defined");
+                chunkedUpload.appendChunk(request.index, request.seq, request.content);
+                return;
+            }
+            
+            //The sign job starts only when all the documents have been uploaded, since the scheduler batches a complete list of data
+            if(action.equals("uploadEnd")){
+                if(chunkedUpload == null)
+                    throw new Exception("Unexpected upload end: an uploadBegin must be sent first");
+                List<Data> dataToSignList = chunkedUpload.end();
+                String[] uploadDllList = chunkedUpload.getDllList();
+                chunkedUpload = null;
+                try{
+                    SignFactory.performSignAsync(dataToSignList, uploadDllList, getSpoolCleaningListener(getResponseListener(session, chunkedUploadRequest.binaryResponse, chunkedUploadRequest.streamResults, chunkedUploadRequest.requestId), dataToSignList), chunkedUploadRequest.streamResults, getBatchOwner(session, chunkedUploadRequest));
+                }catch(Exception ex){
+                    ChunkedUpload.deleteFiles(dataToSignList);
+                    throw ex;
                 }
-                
-                dataToSignList.add(new Data(id, content, config));
+                return;
             }
-
-            List<Data> dataSignedList = SignFactory.performSign(dataToSignList, pkcs11DllList);
             
-            JsonArrayBuilder jsonArrayBuilder = Json.createArrayBuilder();
-            for(Data dataSigned : dataSignedList){
-                String contentB64 = new String(SignUtils.base64Encode(dataSigned.data), "UTF-8");
-                jsonArrayBuilder.add(Json.createObjectBuilder().add("id", dataSigned.id).add("contentB64", contentB64));
+            if(action.equals("signBinary")){
+                //Only the ids and params are in the header: the contents follow as binary messages, one for each data in the same order
+                discardBinaryData();
+                binaryDataToSignList = getDataToSignList(request.dataToSign, null);
+                binaryDllList = request.dllList;
+                binaryDataReceived = 0;
+                binaryStreamResults = request.streamResults;
+                binaryRequest = request;
+                if(binaryDataToSignList.size() == 0)
+                    throw new Exception("No data to sign");
+                return;
+            }
+            
+            if(action.equals("preparePdf")){
+                //No smart card is needed: hashB64 is signed with a signHash request (or signedAttributesHashB64 with a rawSignature one), possibly on another machine, and the signatures are sent back with finalizePdf
+                if(request.certificateB64 == null)
+                    throw new Exception("certificateB64 must be defined");
+                final X509Certificate cert = X509Utils.getX509Certificate(SignUtils.base64Decode(request.certificateB64.getBytes("UTF-8")));
+                if(cert == null)
+                    throw new Exception("Invalid certificateB64");
+                final List<Data> pdfToPrepareList = getDataToSignList(request.dataToSign, "contentB64");
+                submitExternalSignTask(session, request, new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        preparePdf(session, pdfToPrepareList, cert, requestId);
+                        return null;
+                    }
+                });
+                spoolInUse = true;
+                return;
             }
             
-            JsonObject ret = Json.createObjectBuilder().add("dataSigned", jsonArrayBuilder).build();
-            String retS = ret.toString();
+            if(action.equals("finalizePdf")){
+                if(request.dataToFinalize == null)
+                    throw new Exception("dataToFinalize must be defined");
+                final List<SignRequest.DataItem> dataToFinalizeList = request.dataToFinalize;
+                for(SignRequest.DataItem dataToFinalize : dataToFinalizeList)
+                    if(dataToFinalize.handle == null)
+                        throw new Exception("handle must be defined");
+                submitExternalSignTask(session, request, new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        finalizePdf(session, dataToFinalizeList, requestId);
+                        return null;
+                    }
+                });
+                spoolInUse = true;
+                return;
+            }
             
-            return retS;
+            if(!action.equals("sign") && !action.equals("signHash"))
+                throw new Exception("Unknown action " + action);
+            
+            //signHash receives the digests in hashB64 instead of the contents
+            List<Data> dataToSignList = getDataToSignList(request.dataToSign, action.equals("signHash") ? "hashB64" : "contentB64");
+            if(action.equals("signHash"))
+                for(Data dataToSign : dataToSignList)
+                    dataToSign.config.hashOnly = true;
+            
+            SignFactory.performSignAsync(dataToSignList, request.dllList, getSpoolCleaningListener(getResponseListener(session, false, request.streamResults, request.requestId), dataToSignList), request.streamResults, getBatchOwner(session, request));
+            spoolInUse = true;
             
         }catch(Exception ex){
+            //A failed request of another kind does not affect the upload in progress
+            if(request != null && request.action.startsWith("upload"))
+                discardUpload();
             ex.printStackTrace();
             SignUI.showErrorMessage(ex.getMessage());
-            return "{\"error\" : \""+ex.getMessage().replace("\"", "\\\"").replace("\\", "\\\\")+"\"}";
+            sendResponse(session, getErrorResponse(ex, request != null ? request.requestId : null));
         } finally {
+            //The contents spooled by the parser are deleted here, unless a sign job will delete them at its end
+            if(request != null && !spoolInUse)
+                request.discard();
             //SignFactory.getUniqueWebSocketServer().terminate();
         }
     }
+    
+    //The phases of the external PDF signature run on the scheduler task executor, and the request spool is deleted when they end
+    private static void submitExternalSignTask(final Session session, final SignRequest request, final Callable<Void> task) throws Exception{
+        SignFactory.getUniqueScheduler().submitTask(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try{
+                    task.call();
+                }catch(Exception ex){
+                    ex.printStackTrace();
+                    sendResponse(session, getErrorResponse(ex, request.requestId));
+                }finally{
+                    request.discard();
+                }
+                return null;
+            }
+        });
+    }
+    
+    //When a PDF can not be prepared the ones already prepared are discarded, since the client does not receive their handles
+    private static void preparePdf(Session session, List<Data> pdfToPrepareList, X509Certificate cert, String requestId) throws Exception{
+        List<String> handleList = new ArrayList<String>();
+        try{
+            JsonArrayBuilder jsonArrayBuilder = Json.createArrayBuilder();
+            for(Data pdfToSign : pdfToPrepareList){
+                PreparedPDF prepared = SignFactory.getUniqueEngine().preparePDF(pdfToSign, cert);
+                handleList.add(prepared.handle);
+                JsonObjectBuilder jsonObjectBuilder = Json.createObjectBuilder().add("id", prepared.data.id).add("handle", prepared.handle).add("hashB64", new String(SignUtils.base64Encode(prepared.hash), "UTF-8")).add("signedAttributesHashB64", new String(SignUtils.base64Encode(prepared.signedAttributesHash), "UTF-8"));
+                addByteRange(jsonObjectBuilder, prepared.data);
+                jsonArrayBuilder.add(jsonObjectBuilder);
+            }
+            sendResponse(session, addRequestId(Json.createObjectBuilder(), requestId).add("preparedPdf", jsonArrayBuilder).build().toString());
+        }catch(Exception ex){
+            for(String handle : handleList)
+                SignFactory.getUniqueEngine().discardPreparedPDF(handle);
+            throw ex;
+        }
+    }
+    
+    //The handles are discarded only when all the PDFs have been finalized and sent: after a failure the client can send the same request again
+    private static void finalizePdf(Session session, List<SignRequest.DataItem> dataToFinalizeList, String requestId) throws Exception{
+        List<Data> dataSignedList = new ArrayList<Data>();
+        for(SignRequest.DataItem dataToFinalize : dataToFinalizeList)
+            dataSignedList.add(SignFactory.getUniqueEngine().finalizePDF(dataToFinalize.handle, getContent(dataToFinalize, "signatureB64")));
+        sendSignedDataResponse(session, dataSignedList, requestId);
+        for(SignRequest.DataItem dataToFinalize : dataToFinalizeList)
+            SignFactory.getUniqueEngine().discardPreparedPDF(dataToFinalize.handle);
+    }
+    
+    private void discardUpload(){
+        if(chunkedUpload == null)
+            return;
+        chunkedUpload.discard();
+        chunkedUpload = null;
+    }
+    
+    private void discardBinaryData(){
+        if(binaryDataToSignList == null)
+            return;
+        ChunkedUpload.deleteFiles(binaryDataToSignList);
+        binaryDataToSignList = null;
+    }
+    
+    //Each content is written to a temporary file while it is received, like the chunks of an upload, and the files are deleted when the sign job ends
+    @OnMessage
+    public void receiveBinaryData(InputStream dataStream, Session session) {
+        try{
+            if(binaryDataToSignList == null || binaryDataReceived >= binaryDataToSignList.size())
+                throw new Exception("Unexpected binary data: a signBinary header must be sent first");
+            
+            Data dataToSign = binaryDataToSignList.get(binaryDataReceived++);
+            dataToSign.file = File.createTempFile("websocket_smartcard_signer_", ".upload");
+            OutputStream output = new FileOutputStream(dataToSign.file);
+            try{
+                IOUtils.copyInputStreamToOutputStream(dataStream, output);
+            }finally{
+                output.close();
+            }
+            if(binaryDataReceived < binaryDataToSignList.size())
+                return;
+            
+            List<Data> dataToSignList = binaryDataToSignList;
+            binaryDataToSignList = null;
+            try{
+                SignFactory.performSignAsync(dataToSignList, binaryDllList, getSpoolCleaningListener(getResponseListener(session, true, binaryStreamResults, binaryRequest.requestId), dataToSignList), binaryStreamResults, getBatchOwner(session, binaryRequest));
+            }catch(Exception ex){
+                ChunkedUpload.deleteFiles(dataToSignList);
+                throw ex;
+            }
+            
+        }catch(Exception ex){
+            discardBinaryData();
+            ex.printStackTrace();
+            SignUI.showErrorMessage(ex.getMessage());
+            sendResponse(session, getErrorResponse(ex, binaryRequest != null ? binaryRequest.requestId : null));
+        }
+    }
+    
+    //With a batch token the requests of the same client address are joined also when sent on different connections, otherwise only the requests of the same connection
+    private static String getBatchOwner(Session session, SignRequest request){
+        if(request.batchToken == null || request.batchToken.isEmpty())
+            return session.getId();
+        String remoteAddress = session instanceof TyrusSession ? ((TyrusSession) session).getRemoteAddr() : session.getId();
+        return remoteAddress + "|" + request.batchToken;
+    }
+    
+    private static List<Data> getDataToSignList(List<SignRequest.DataItem> dataItemList, String contentField) throws Exception{
+        if(dataItemList == null)
+            throw new Exception("dataToSign must be defined");
+        
+        List<Data> dataToSignList = new ArrayList<Data>();
+        
+        for(SignRequest.DataItem dataItem : dataItemList){
+            if(dataItem.id == null)
+                throw new Exception("id must be defined");
+            SignConfig config = getSignConfig(dataItem.params);
+            if(contentField == null)
+                dataToSignList.add(new Data(dataItem.id, (byte[]) null, config));
+            else if(!contentField.equals(dataItem.contentField))
+                throw new Exception(contentField + " must be defined for " + dataItem.id);
+            else if(dataItem.contentFile != null)
+                dataToSignList.add(new Data(dataItem.id, dataItem.contentFile, config));
+            else
+                dataToSignList.add(new Data(dataItem.id, dataItem.content, config));
+        }
+        return dataToSignList;
+    }
+    
+    private static byte[] getContent(SignRequest.DataItem dataItem, String contentField) throws Exception{
+        if(!contentField.equals(dataItem.contentField))
+            throw new Exception(contentField + " must be defined");
+        if(dataItem.contentFile != null)
+            return IOUtils.readFile(dataItem.contentFile);
+        return dataItem.content;
+    }
+    
+    private static SignConfig getSignConfig(JsonObject parameters){
+        SignConfig config = new SignConfig();
+        if(parameters != null){
+            config.signPdfAsP7m = parameters.getBoolean("signPdfAsP7m", false);
+            config.visibleSignature = parameters.getBoolean("visibleSignature", true);
+            config.pageNumToSign = parameters.getInt("pageNumToSign", -1);
+            config.signPosition = parameters.getString("signPosition", "left");
+            config.rawSignature = parameters.getBoolean("rawSignature", false);
+            JsonArray byteRange = parameters.getJsonArray("byteRange");
+            if(byteRange != null){
+                config.byteRange = new long[byteRange.size()];
+                for(int i=0;i<byteRange.size();i++)
+                    config.byteRange[i] = byteRange.getJsonNumber(i).longValue();
+            }
+        }
+        return config;
+    }
+    
+    //With streamResults every signed data is sent as its own message as soon as it is ready, then a summary message ends the job
+    private static SignScheduler.SignJobListener getResponseListener(final Session session, final boolean binary, final boolean streamResults, final String requestId){
+        return new SignScheduler.SignJobListener() {
+            private int dataSignedSent = 0;
+            @Override
+            public void onDataSigned(int index, Data dataSigned) throws Exception {
+                try{
+                    sendDataSignedItem(session, index, dataSigned, binary, requestId);
+                }finally{
+                    if(dataSigned.file != null)
+                        dataSigned.file.delete();
+                }
+                dataSignedSent++;
+            }
+            @Override
+            public void onSignCompleted(List<Data> dataSignedList) {
+                try{
+                    if(streamResults)
+                        sendResponse(session, addRequestId(Json.createObjectBuilder(), requestId).add("signCompleted", Json.createObjectBuilder().add("count", dataSignedSent)).build().toString());
+                    else if(binary)
+                        sendBinaryResponse(session, dataSignedList, requestId);
+                    else
+                        sendSignedDataResponse(session, dataSignedList, requestId);
+                }catch(Exception ex){
+                    onSignFailed(ex);
+                }finally{
+                    //The big signed PDFs are returned in temporary files
+                    ChunkedUpload.deleteFiles(dataSignedList);
+                }
+            }
+            @Override
+            public void onSignFailed(Exception ex) {
+                ex.printStackTrace();
+                SignUI.showErrorMessage(ex.getMessage());
+                sendResponse(session, getErrorResponse(ex, requestId));
+            }
+        };
+    }
+    
+    private static SignScheduler.SignJobListener getSpoolCleaningListener(final SignScheduler.SignJobListener listener, final List<Data> spooledDataList){
+        return new SignScheduler.SignJobListener() {
+            @Override
+            public void onDataSigned(int index, Data dataSigned) throws Exception {
+                listener.onDataSigned(index, dataSigned);
+            }
+            @Override
+            public void onSignCompleted(List<Data> dataSignedList) {
+                ChunkedUpload.deleteFiles(spooledDataList);
+                listener.onSignCompleted(dataSignedList);
+            }
+            @Override
+            public void onSignFailed(Exception ex) {
+                ChunkedUpload.deleteFiles(spooledDataList);
+                listener.onSignFailed(ex);
+            }
+        };
+    }
+    
+    //Waiting the end of each send keeps at most one signed data in the outgoing queue
+    private static void sendDataSignedItem(Session session, int index, Data dataSigned, boolean binary, String requestId) throws Exception{
+        synchronized (session) {
+            if(!session.isOpen())
+                throw new Exception("The connection has been closed");
+            if(binary){
+                session.getBasicRemote().sendText(addRequestId(Json.createObjectBuilder(), requestId).add("dataSignedItem", Json.createObjectBuilder().add("index", index).add("id", dataSigned.id).add("size", getSize(dataSigned))).build().toString());
+                sendBinaryData(session, dataSigned);
+            } else {
+                Writer writer = session.getBasicRemote().getSendWriter();
+                try{
+                    writer.write("{");
+                    writeRequestId(writer, requestId);
+                    writer.write("\"dataSignedItem\":");
+                    writeSignedData(writer, index, dataSigned);
+                    writer.write("}");
+                }finally{
+                    writer.close();
+                }
+            }
+        }
+    }
+    
+    //A header with the ids and sizes is followed by one binary message for each signed data, in the same order
+    private static void sendBinaryResponse(Session session, List<Data> dataSignedList, String requestId) throws Exception{
+        JsonArrayBuilder jsonArrayBuilder = Json.createArrayBuilder();
+        for(Data dataSigned : dataSignedList)
+            jsonArrayBuilder.add(Json.createObjectBuilder().add("id", dataSigned.id).add("size", getSize(dataSigned)));
+        String header = addRequestId(Json.createObjectBuilder(), requestId).add("dataSigned", jsonArrayBuilder).build().toString();
+        
+        synchronized (session) {
+            if(!session.isOpen())
+                return;
+            session.getBasicRemote().sendText(header);
+            for(Data dataSigned : dataSignedList)
+                sendBinaryData(session, dataSigned);
+        }
+    }
+    
+    private static void sendBinaryData(Session session, Data dataSigned) throws Exception{
+        if(dataSigned.data != null){
+            session.getBasicRemote().sendBinary(ByteBuffer.wrap(dataSigned.data));
+            return;
+        }
+        InputStream input = new FileInputStream(dataSigned.file);
+        try{
+            OutputStream output = session.getBasicRemote().getSendStream();
+            try{
+                IOUtils.copyInputStreamToOutputStream(input, output);
+            }finally{
+                output.close();
+            }
+        }finally{
+            input.close();
+        }
+    }
+    
+    private static long getSize(Data dataSigned){
+        return dataSigned.data != null ? dataSigned.data.length : dataSigned.file.length();
+    }
+    
+    //The response is written directly to the websocket as partial frames, encoding each signed data to Base64 a piece at a time, so it is never built in memory as a whole
+    private static void sendSignedDataResponse(Session session, List<Data> dataSignedList, String requestId) throws Exception{
+        synchronized (session) {
+            if(!session.isOpen())
+                return;
+            Writer writer = session.getBasicRemote().getSendWriter();
+            try{
+                writer.write("{");
+                writeRequestId(writer, requestId);
+                writer.write("\"dataSigned\":[");
+                for(int i=0;i<dataSignedList.size();i++){
+                    if(i != 0)
+                        writer.write(",");
+                    writeSignedData(writer, -1, dataSignedList.get(i));
+                }
+                writer.write("]}");
+            }finally{
+                writer.close();
+            }
+        }
+    }
+    
+    private static void writeSignedData(Writer writer, int index, Data dataSigned) throws Exception{
+        writer.write("{");
+        if(index >= 0)
+            writer.write("\"index\":" + index + ",");
+        writer.write("\"id\":");
+        writeJsonString(writer, dataSigned.id);
+        writer.write(",\"contentB64\":\"");
+        writeBase64(writer, dataSigned);
+        writer.write("\"");
+        if(dataSigned.config != null && dataSigned.config.byteRange != null){
+            writer.write(",\"byteRange\":[");
+            for(int i=0;i<dataSigned.config.byteRange.length;i++)
+                writer.write((i != 0 ? "," : "") + dataSigned.config.byteRange[i]);
+            writer.write("]");
+        }
+        writer.write("}");
+    }
+    
+    private static void writeBase64(Writer writer, Data dataSigned) throws Exception{
+        //Each piece is a multiple of 3 bytes, so the Base64 of the pieces can be concatenated
+        byte[] piece = new byte[3 * 16 * 1024];
+        char[] buffer = new char[piece.length / 3 * 4];
+        InputStream input = dataSigned.data != null ? new ByteArrayInputStream(dataSigned.data) : new FileInputStream(dataSigned.file);
+        try{
+            int pieceLength = 0;
+            while((pieceLength = readPiece(input, piece)) > 0){
+                byte[] encoded = Base64.encode(piece, 0, pieceLength);
+                for(int i=0;i<encoded.length;i++)
+                    buffer[i] = (char) encoded[i];
+                writer.write(buffer, 0, encoded.length);
+            }
+        }finally{
+            input.close();
+        }
+    }
+    
+    private static int readPiece(InputStream input, byte[] piece) throws Exception{
+        int pieceLength = 0;
+        int read = 0;
+        while(pieceLength < piece.length && (read = input.read(piece, pieceLength, piece.length - pieceLength)) != -1)
+            pieceLength += read;
+        return pieceLength;
+    }
+    
+    private static void writeJsonString(Writer writer, String value) throws Exception{
+        if(value == null){
+            writer.write("null");
+            return;
+        }
+        writer.write('"');
+        for(int i=0;i<value.length();i++){
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\')
+                writer.write("\\" + c);
+            else if(c < 0x20)
+                writer.write(String.format("\\u%04x", (int) c));
+            else
+                writer.write(c);
+        }
+        writer.write('"');
+    }
+    
+    private static void addByteRange(JsonObjectBuilder jsonObjectBuilder, Data dataSigned){
+        if(dataSigned.config == null || dataSigned.config.byteRange == null)
+            return;
+        JsonArrayBuilder byteRangeBuilder = Json.createArrayBuilder();
+        for(long byteRangeValue : dataSigned.config.byteRange)
+            byteRangeBuilder.add(byteRangeValue);
+        jsonObjectBuilder.add("byteRange", byteRangeBuilder);
+    }
+    
+    private static JsonObjectBuilder addRequestId(JsonObjectBuilder jsonObjectBuilder, String requestId){
+        if(requestId != null)
+            jsonObjectBuilder.add("requestId", requestId);
+        return jsonObjectBuilder;
+    }
+    
+    private static void writeRequestId(Writer writer, String requestId) throws Exception{
+        if(requestId == null)
+            return;
+        writer.write("\"requestId\":");
+        writeJsonString(writer, requestId);
+        writer.write(",");
+    }
+    
+    private static String getErrorResponse(Exception ex, String requestId){
+        return addRequestId(Json.createObjectBuilder(), requestId).add("error", String.valueOf(ex.getMessage())).build().toString();
+    }
+    
+    //All the messages are sent with the blocking remote while holding the session lock, so they reach the client in the order they are sent
+    private static void sendResponse(Session session, String response){
+        synchronized (session) {
+            if(!session.isOpen())
+                return;
+            try{
+                session.getBasicRemote().sendText(response);
+            }catch(Exception ex){
+                ex.printStackTrace();
+            }
+        }
+    }
 }
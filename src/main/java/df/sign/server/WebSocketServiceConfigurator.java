@@ -0,0 +1,81 @@
+/*
+    Websocket Smartcard Signer
+    Copyright (C) 2017  Damiano Falcioni (damiano.falcioni@gmail.com)
+    
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+    
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+    
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package df.sign.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.websocket.DeploymentException;
+import javax.websocket.Extension;
+import javax.websocket.HandshakeResponse;
+import javax.websocket.server.HandshakeRequest;
+import javax.websocket.server.ServerEndpointConfig;
+
+import org.glassfish.tyrus.ext.extension.deflate.PerMessageDeflateExtension;
+import org.glassfish.tyrus.server.Server;
+
+/*
+ * Tyrus creates a configurator for every deployment of the endpoint, in the thread that starts the server.
+ * The configuration of the server being started is taken from that thread, so every server keeps its own settings.
+ */
+public class WebSocketServiceConfigurator extends ServerEndpointConfig.Configurator {
+    
+    public static final String SERVER_CONFIG_PROPERTY = "df.sign.server.config";
+    
+    private static final ThreadLocal<WebSocketServerConfig> startingServerConfig = new ThreadLocal<WebSocketServerConfig>();
+    
+    private WebSocketServerConfig serverConfig = null;
+    private List<Extension> extensionList = new ArrayList<Extension>();
+    
+    public WebSocketServiceConfigurator(){
+        serverConfig = startingServerConfig.get();
+        if(serverConfig == null)
+            serverConfig = new WebSocketServerConfig();
+        if(serverConfig.perMessageDeflate)
+            extensionList.add(new PerMessageDeflateExtension());
+    }
+    
+    public static void startServer(Server server, WebSocketServerConfig config) throws DeploymentException{
+        startingServerConfig.set(config);
+        try{
+            server.start();
+        }finally{
+            startingServerConfig.remove();
+        }
+    }
+    
+    public static WebSocketServerConfig getServerConfig(ServerEndpointConfig endpointConfig){
+        Object config = endpointConfig.getUserProperties().get(SERVER_CONFIG_PROPERTY);
+        if(config instanceof WebSocketServerConfig)
+            return (WebSocketServerConfig) config;
+        return new WebSocketServerConfig();
+    }
+    
+    @Override
+    public void modifyHandshake(ServerEndpointConfig endpointConfig, HandshakeRequest request, HandshakeResponse response) {
+        endpointConfig.getUserProperties().put(SERVER_CONFIG_PROPERTY, serverConfig);
+        super.modifyHandshake(endpointConfig, request, response);
+    }
+    
+    @Override
+    public List<Extension> getNegotiatedExtensions(List<Extension> installed, List<Extension> requested) {
+        List<Extension> available = new ArrayList<Extension>(installed);
+        available.addAll(extensionList);
+        return super.getNegotiatedExtensions(available, requested);
+    }
+}
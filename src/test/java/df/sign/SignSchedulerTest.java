@@ -0,0 +1,248 @@
+/*
+    Websocket Smartcard Signer
+    Copyright (C) 2017  Damiano Falcioni (damiano.falcioni@gmail.com)
+    
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+    
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+    
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package df.sign;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import df.sign.datastructure.Data;
+import df.sign.pkcs11.CertificateData;
+
+/*
+ * The dialogs and the token are replaced: the certificate dialog waits for the test to open it, and the signature of a data is its content prefixed by "signed ".
+ */
+public class SignSchedulerTest {
+    
+    private static class TestScheduler extends SignScheduler {
+        private CountDownLatch certificateDialogOpened = new CountDownLatch(0);
+        private CountDownLatch pinEntered = new CountDownLatch(1);
+        private boolean abort = false;
+        private List<List<String>> signedBatchList = Collections.synchronizedList(new ArrayList<List<String>>());
+        
+        @Override
+        protected CertificateData selectCertificate(String[] dllList) throws Exception{
+            certificateDialogOpened.await();
+            if(abort)
+                return null;
+            CertificateData certificateData = new CertificateData();
+            certificateData.dll = "test";
+            certificateData.tokenSerial = "test";
+            return certificateData;
+        }
+        
+        @Override
+        protected SignEngine.SpeculativePreparation prepareSpeculatively(List<Data> dataToSignList, CertificateData certificateData) throws Exception{
+            return null;
+        }
+        
+        @Override
+        protected String askForPIN(){
+            pinEntered.countDown();
+            return "1234";
+        }
+        
+        @Override
+        protected void signData(List<Data> dataToSignList, CertificateData certificateData, String pin, SignEngine.DataSignedListener listener, SignEngine.SpeculativePreparation speculation) throws Exception{
+            List<String> idList = new ArrayList<String>();
+            for(int i=0;i<dataToSignList.size();i++){
+                Data dataToSign = dataToSignList.get(i);
+                idList.add(dataToSign.id);
+                listener.onDataSigned(i, new Data(dataToSign.id, ("signed " + new String(dataToSign.data, "UTF-8")).getBytes("UTF-8"), dataToSign.config));
+            }
+            signedBatchList.add(idList);
+        }
+    }
+    
+    private static class TestListener implements SignScheduler.SignJobListener {
+        private List<Data> dataSignedList = null;
+        private Exception error = null;
+        @Override
+        public void onDataSigned(int index, Data dataSigned) throws Exception {}
+        @Override
+        public void onSignCompleted(List<Data> dataSignedList) { this.dataSignedList = dataSignedList; }
+        @Override
+        public void onSignFailed(Exception ex) { this.error = ex; }
+    }
+    
+    private int maxQueuedJobs = 0;
+    private int maxRunningJobs = 0;
+    private boolean coalesceRequests = false;
+    private long coalescingWindow = 0;
+    private TestScheduler scheduler = null;
+    
+    @Before
+    public void saveSettings(){
+        maxQueuedJobs = SignScheduler.maxQueuedJobs;
+        maxRunningJobs = SignScheduler.maxRunningJobs;
+        coalesceRequests = SignScheduler.coalesceRequests;
+        coalescingWindow = SignScheduler.coalescingWindow;
+        SignScheduler.coalesceRequests = true;
+        SignScheduler.coalescingWindow = 0;
+    }
+    
+    @After
+    public void restoreSettings(){
+        if(scheduler != null)
+            scheduler.terminate();
+        SignScheduler.maxQueuedJobs = maxQueuedJobs;
+        SignScheduler.maxRunningJobs = maxRunningJobs;
+        SignScheduler.coalesceRequests = coalesceRequests;
+        SignScheduler.coalescingWindow = coalescingWindow;
+    }
+    
+    private static List<Data> getDataList(String... idList) throws Exception{
+        List<Data> ret = new ArrayList<Data>();
+        for(String id : idList)
+            ret.add(new Data(id, id.getBytes("UTF-8")));
+        return ret;
+    }
+    
+    private static void assertSigned(List<Data> dataSignedList, String... idList) throws Exception{
+        assertEquals(idList.length, dataSignedList.size());
+        for(int i=0;i<idList.length;i++){
+            assertEquals(idList[i], dataSignedList.get(i).id);
+            assertEquals("signed " + idList[i], new String(dataSignedList.get(i).data, "UTF-8"));
+        }
+    }
+    
+    @Test
+    public void testRequestsOfTheSameOwnerAreJoined() throws Exception{
+        scheduler = new TestScheduler();
+        scheduler.certificateDialogOpened = new CountDownLatch(1);
+        Future<List<Data>> first = scheduler.submit(getDataList("a1", "a2"), null, null, false, "owner");
+        Future<List<Data>> joined = scheduler.submit(getDataList("b1"), null, null, false, "owner");
+        Future<List<Data>> otherOwner = scheduler.submit(getDataList("c1"), null, null, false, "other owner");
+        Future<List<Data>> noOwner = scheduler.submit(getDataList("d1"), null, null, false, null);
+        scheduler.certificateDialogOpened.countDown();
+        
+        //Each request receives only its own results
+        assertSigned(first.get(10, TimeUnit.SECONDS), "a1", "a2");
+        assertSigned(joined.get(10, TimeUnit.SECONDS), "b1");
+        assertSigned(otherOwner.get(10, TimeUnit.SECONDS), "c1");
+        assertSigned(noOwner.get(10, TimeUnit.SECONDS), "d1");
+        
+        assertEquals(3, scheduler.signedBatchList.size());
+        assertTrue(scheduler.signedBatchList.contains(Arrays.asList("a1", "a2", "b1")));
+        assertTrue(scheduler.signedBatchList.contains(Arrays.asList("c1")));
+        assertTrue(scheduler.signedBatchList.contains(Arrays.asList("d1")));
+    }
+    
+    @Test
+    public void testRequestJoinedWithinTheCoalescingWindow() throws Exception{
+        SignScheduler.coalescingWindow = 2000;
+        scheduler = new TestScheduler();
+        Future<List<Data>> first = scheduler.submit(getDataList("a1"), null, null, false, "owner");
+        assertTrue(scheduler.pinEntered.await(10, TimeUnit.SECONDS));
+        Future<List<Data>> joined = scheduler.submit(getDataList("b1"), null, null, false, "owner");
+        
+        assertSigned(first.get(10, TimeUnit.SECONDS), "a1");
+        assertSigned(joined.get(10, TimeUnit.SECONDS), "b1");
+        assertEquals(Collections.singletonList(Arrays.asList("a1", "b1")), scheduler.signedBatchList);
+    }
+    
+    @Test
+    public void testRequestsNotJoinedWhenCoalescingIsDisabled() throws Exception{
+        SignScheduler.coalesceRequests = false;
+        scheduler = new TestScheduler();
+        scheduler.certificateDialogOpened = new CountDownLatch(1);
+        Future<List<Data>> first = scheduler.submit(getDataList("a1"), null, null, false, "owner");
+        Future<List<Data>> second = scheduler.submit(getDataList("b1"), null, null, false, "owner");
+        scheduler.certificateDialogOpened.countDown();
+        
+        assertSigned(first.get(10, TimeUnit.SECONDS), "a1");
+        assertSigned(second.get(10, TimeUnit.SECONDS), "b1");
+        assertEquals(2, scheduler.signedBatchList.size());
+    }
+    
+    @Test
+    public void testAbortedDialogFailsTheJoinedRequests() throws Exception{
+        scheduler = new TestScheduler();
+        scheduler.abort = true;
+        scheduler.certificateDialogOpened = new CountDownLatch(1);
+        TestListener firstListener = new TestListener();
+        TestListener joinedListener = new TestListener();
+        Future<List<Data>> first = scheduler.submit(getDataList("a1"), null, firstListener, false, "owner");
+        Future<List<Data>> joined = scheduler.submit(getDataList("b1"), null, joinedListener, false, "owner");
+        scheduler.certificateDialogOpened.countDown();
+        
+        for(Future<List<Data>> job : Arrays.asList(first, joined)){
+            try{
+                job.get(10, TimeUnit.SECONDS);
+                fail("The job has been signed after the dialog has been aborted");
+            }catch(ExecutionException ex){
+                assertEquals("Process aborted", ex.getCause().getMessage());
+            }
+        }
+        assertEquals("Process aborted", firstListener.error.getMessage());
+        assertEquals("Process aborted", joinedListener.error.getMessage());
+        assertEquals(0, scheduler.signedBatchList.size());
+    }
+    
+    @Test
+    public void testInvalidRequestsAreRejected() throws Exception{
+        scheduler = new TestScheduler();
+        try{
+            scheduler.submit(new ArrayList<Data>(), null, null);
+            fail("An empty request has been accepted");
+        }catch(Exception ex){
+            assertEquals("No data to sign", ex.getMessage());
+        }
+        try{
+            scheduler.submit(Collections.singletonList(new Data("empty", new byte[0])), null, null);
+            fail("A data without content has been accepted");
+        }catch(Exception ex){
+            assertEquals("data must be defined", ex.getMessage());
+        }
+        assertEquals(0, scheduler.getQueuedJobs());
+    }
+    
+    @Test
+    public void testRequestsRejectedWhenTheQueueIsFull() throws Exception{
+        SignScheduler.maxRunningJobs = 1;
+        SignScheduler.maxQueuedJobs = 1;
+        scheduler = new TestScheduler();
+        scheduler.certificateDialogOpened = new CountDownLatch(1);
+        Future<List<Data>> running = scheduler.submit(getDataList("a1"), null, null);
+        Future<List<Data>> queued = scheduler.submit(getDataList("b1"), null, null);
+        assertEquals(1, scheduler.getQueuedJobs());
+        try{
+            scheduler.submit(getDataList("c1"), null, null);
+            fail("A request has been accepted with the queue full");
+        }catch(Exception ex){
+            assertEquals("Too many sign requests waiting: please retry later", ex.getMessage());
+        }
+        scheduler.certificateDialogOpened.countDown();
+        
+        assertSigned(running.get(10, TimeUnit.SECONDS), "a1");
+        assertSigned(queued.get(10, TimeUnit.SECONDS), "b1");
+    }
+}
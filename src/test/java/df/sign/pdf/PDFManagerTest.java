@@ -0,0 +1,206 @@
+/*
+    Websocket Smartcard Signer
+    Copyright (C) 2017  Damiano Falcioni (damiano.falcioni@gmail.com)
+    
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+    
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+    
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package df.sign.pdf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.itextpdf.text.Document;
+import com.itextpdf.text.Paragraph;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.AcroFields;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfWriter;
+
+import df.sign.cms.CMSSignedDataWrapper;
+import df.sign.cms.PKCS7Manager;
+
+/*
+ * Sign PDFs with a software RSA key, as the card would do with the hash of the signed attributes, and verify them both with the self-check and with iText.
+ */
+public class PDFManagerTest {
+    
+    private static final String digestOID = CMSSignedDataGenerator.DIGEST_SHA256;
+    private static KeyPair keyPair = null;
+    private static X509Certificate cert = null;
+    
+    @BeforeClass
+    public static void createKey() throws Exception{
+        if(Security.getProvider("BC") == null)
+            Security.addProvider(new BouncyCastleProvider());
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        keyPair = keyPairGenerator.generateKeyPair();
+        X500Name name = new X500Name("CN=PDFManagerTest");
+        cert = new JcaX509CertificateConverter().getCertificate(new JcaX509v3CertificateBuilder(name, BigInteger.ONE, new Date(System.currentTimeMillis() - 60000), new Date(System.currentTimeMillis() + 3600000), name, keyPair.getPublic()).build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+    }
+    
+    private static byte[] createPDF(int numPages) throws Exception{
+        ByteArrayOutputStream pdfOut = new ByteArrayOutputStream();
+        Document document = new Document();
+        PdfWriter.getInstance(document, pdfOut);
+        document.open();
+        for(int i=0;i<numPages;i++){
+            document.add(new Paragraph("Page " + (i + 1)));
+            document.newPage();
+        }
+        document.close();
+        return pdfOut.toByteArray();
+    }
+    
+    private static byte[] sign(byte[] hash, Date signDate) throws Exception{
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(CMSSignedDataWrapper.getDataToSign(hash, signDate, cert));
+        return signature.sign();
+    }
+    
+    private static PDFManager prepare(byte[] pdfData, Date signDate, String signPosition) throws Exception{
+        PDFManager pdfManager = new PDFManager(pdfData, cert);
+        pdfManager.setDateTime(signDate);
+        pdfManager.setVisibleSignature(-1, signPosition);
+        pdfManager.estimateContentsSize(digestOID);
+        pdfManager.preClose();
+        return pdfManager;
+    }
+    
+    private static void assertValidWithIText(byte[] signedPdfData) throws Exception{
+        PdfReader reader = new PdfReader(signedPdfData);
+        try{
+            AcroFields fields = reader.getAcroFields();
+            List<String> signatureNameList = fields.getSignatureNames();
+            assertFalse(signatureNameList.isEmpty());
+            for(String signatureName : signatureNameList)
+                assertTrue(signatureName, fields.verifySignature(signatureName).verify());
+        }finally{
+            reader.close();
+        }
+    }
+    
+    private static Rectangle getSignaturePosition(byte[] signedPdfData, String signatureName) throws Exception{
+        PdfReader reader = new PdfReader(signedPdfData);
+        try{
+            return reader.getAcroFields().getFieldPositions(signatureName).get(0).position;
+        }finally{
+            reader.close();
+        }
+    }
+    
+    @Test
+    public void testSinglePassSignature() throws Exception{
+        Date signDate = new Date();
+        PDFManager pdfManager = prepare(createPDF(3), signDate, "left");
+        byte[] hash = pdfManager.calculateRangeHash(digestOID);
+        byte[] signedPdfData = pdfManager.buildSignedPDF(digestOID, sign(hash, signDate), hash);
+        
+        PDFManager.checkSignedPDF(signedPdfData, null, pdfManager.getSignatureFieldName(), hash, cert, PDFManager.SelfCheckLevel.STRUCTURAL);
+        assertValidWithIText(signedPdfData);
+    }
+    
+    @Test
+    public void testPreparedPDFWithInsertedSignature() throws Exception{
+        //The external signature flow: the PDF is closed with an empty placeholder, and the PKCS7 is written into it later
+        Date signDate = new Date();
+        PDFManager pdfManager = prepare(createPDF(1), signDate, "right");
+        byte[] hash = pdfManager.calculateRangeHash(digestOID);
+        byte[] preparedPdfData = pdfManager.closeWithEmptySignature();
+        String signatureName = pdfManager.getSignatureFieldName();
+        long[] byteRange = PDFManager.getSignatureByteRange(preparedPdfData, signatureName);
+        
+        byte[] pkcs7 = PKCS7Manager.buildPDFPKCS7(digestOID, cert, sign(hash, signDate), hash, signDate);
+        byte[] signedPdfData = PDFManager.insertSignature(preparedPdfData, byteRange, pkcs7);
+        
+        assertEquals(preparedPdfData.length, signedPdfData.length);
+        PDFManager.checkSignedPDF(signedPdfData, null, signatureName, hash, cert, PDFManager.SelfCheckLevel.STRUCTURAL);
+        assertValidWithIText(signedPdfData);
+    }
+    
+    @Test
+    public void testSignatureTooBigForThePlaceholder() throws Exception{
+        Date signDate = new Date();
+        PDFManager pdfManager = prepare(createPDF(1), signDate, "left");
+        pdfManager.calculateRangeHash(digestOID);
+        byte[] preparedPdfData = pdfManager.closeWithEmptySignature();
+        long[] byteRange = PDFManager.getSignatureByteRange(preparedPdfData, pdfManager.getSignatureFieldName());
+        try{
+            PDFManager.insertSignature(preparedPdfData, byteRange, new byte[(int) (byteRange[2] - byteRange[1])]);
+            fail("A PKCS7 longer than the placeholder has been inserted");
+        }catch(Exception ex){}
+    }
+    
+    @Test
+    public void testSelfCheckRejectsAnotherDigest() throws Exception{
+        Date signDate = new Date();
+        PDFManager pdfManager = prepare(createPDF(1), signDate, "left");
+        byte[] hash = pdfManager.calculateRangeHash(digestOID);
+        byte[] signedPdfData = pdfManager.buildSignedPDF(digestOID, sign(hash, signDate), hash);
+        
+        byte[] otherHash = Arrays.copyOf(hash, hash.length);
+        otherHash[0] ^= 1;
+        try{
+            PDFManager.checkSignedPDF(signedPdfData, null, pdfManager.getSignatureFieldName(), otherHash, cert, PDFManager.SelfCheckLevel.STRUCTURAL);
+            fail("The self-check accepted a digest that is not the signed one");
+        }catch(Exception ex){}
+        try{
+            PDFManager.checkSignedPDF(Arrays.copyOf(signedPdfData, signedPdfData.length + 1), null, pdfManager.getSignatureFieldName(), hash, cert, PDFManager.SelfCheckLevel.STRUCTURAL);
+            fail("The self-check accepted data appended after the signed byte range");
+        }catch(Exception ex){}
+    }
+    
+    @Test
+    public void testSecondSignatureInAFreeArea() throws Exception{
+        byte[] signedPdfData = createPDF(1);
+        String[] signatureNameList = new String[2];
+        for(int i=0;i<2;i++){
+            Date signDate = new Date();
+            PDFManager pdfManager = prepare(signedPdfData, signDate, null);
+            byte[] hash = pdfManager.calculateRangeHash(digestOID);
+            signedPdfData = pdfManager.buildSignedPDF(digestOID, sign(hash, signDate), hash);
+            signatureNameList[i] = pdfManager.getSignatureFieldName();
+        }
+        
+        Rectangle firstArea = getSignaturePosition(signedPdfData, signatureNameList[0]);
+        Rectangle secondArea = getSignaturePosition(signedPdfData, signatureNameList[1]);
+        assertEquals(50, firstArea.getLeft(), 0.01f);
+        assertEquals(110, secondArea.getLeft(), 0.01f);
+        assertEquals(firstArea.getBottom(), secondArea.getBottom(), 0.01f);
+        assertValidWithIText(signedPdfData);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+    Websocket Smartcard Signer
+    Copyright (C) 2017  Damiano Falcioni (damiano.falcioni@gmail.com)
+    
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+    
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+    
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package df.sign.pdf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.itextpdf.text.PageSize;
+import com.itextpdf.text.Rectangle;
+
+public class SignatureAreaIndexTest {
+    
+    private static void assertArea(float llx, float lly, float urx, float ury, Rectangle area){
+        assertNotNull(area);
+        assertEquals(llx, area.getLeft(), 0.01f);
+        assertEquals(lly, area.getBottom(), 0.01f);
+        assertEquals(urx, area.getRight(), 0.01f);
+        assertEquals(ury, area.getTop(), 0.01f);
+    }
+    
+    @Test
+    public void testEmptyPageReturnsTheRequestedArea(){
+        SignatureAreaIndex areaIndex = new SignatureAreaIndex(PageSize.A4);
+        assertArea(110, 160, 170, 200, areaIndex.findFreeArea(110, 160, 60, 40));
+    }
+    
+    @Test
+    public void testAreaNextToAnExistingSignature(){
+        SignatureAreaIndex areaIndex = new SignatureAreaIndex(PageSize.A4);
+        areaIndex.add(new Rectangle(110, 160, 170, 200));
+        assertArea(170, 160, 230, 200, areaIndex.findFreeArea(110, 160, 60, 40));
+    }
+    
+    @Test
+    public void testAreaAboveAFullRow(){
+        SignatureAreaIndex areaIndex = new SignatureAreaIndex(PageSize.A4);
+        areaIndex.add(new Rectangle(0, 160, PageSize.A4.getRight(), 200));
+        assertArea(110, 200, 170, 240, areaIndex.findFreeArea(110, 160, 60, 40));
+    }
+    
+    @Test
+    public void testAreaAcrossManyCells(){
+        SignatureAreaIndex areaIndex = new SignatureAreaIndex(PageSize.A4);
+        for(int i=0;i<5;i++)
+            areaIndex.add(new Rectangle(110 + i * 60, 160, 170 + i * 60, 200));
+        Rectangle area = areaIndex.findFreeArea(110, 160, 60, 40);
+        assertArea(410, 160, 470, 200, area);
+        assertTrue(areaIndex.isFree(area));
+    }
+    
+    @Test
+    public void testFullPageHasNoFreeArea(){
+        SignatureAreaIndex areaIndex = new SignatureAreaIndex(PageSize.A4);
+        areaIndex.add(new Rectangle(0, 0, PageSize.A4.getRight(), PageSize.A4.getTop()));
+        assertNull(areaIndex.findFreeArea(110, 160, 60, 40));
+    }
+    
+    @Test
+    public void testAreaOutsideThePageIsNotFree(){
+        SignatureAreaIndex areaIndex = new SignatureAreaIndex(PageSize.A4);
+        assertFalse(areaIndex.isFree(new Rectangle(560, 160, 620, 200)));
+        assertTrue(areaIndex.isFree(new Rectangle(500, 160, 560, 200)));
+    }
+}